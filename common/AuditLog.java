@@ -0,0 +1,383 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/*
+ * AuditLog class writes the produced or consumed items of one thread to a file
+ * without doing the file I/O on that thread
+ * log hands an item to a lock-free single producer single consumer queue,
+ * one writer thread shared by all open logs takes the items of each log in batches,
+ * formats them into the reusable buffer of that log without creating strings
+ * and writes the buffer to the file
+ * the writer is started by the first open log and ends after the last one is closed,
+ * so a server with a log per session still has a single writer thread
+ * a queue holds two binary blocks and a buffer one block of items,
+ * enough to keep logging while the writer is busy with the file of another log
+ * only one thread may call log on an AuditLog
+ * a TEXT file holds a title line followed by one item per line, like the PrintWriter files before
+ * a BINARY file holds fixed width items that AuditVerifier can check quickly:
+ *   header: magic, version, items per block (12 bytes)
+ *   blocks: item count, count big endian integers, CRC32C of the integers
+ * a block is full except when the writer catches up with the logging thread
+ * how often the file is forced to the storage device is chosen with a Sync policy
+ */
+public final class AuditLog implements Closeable{
+    /*
+     * Sync enum is the fsync policy of a log:
+     * NONE leaves it to the operating system, BATCH forces the file after every written batch,
+     * TIMED forces it at most once per sync interval
+     */
+    public enum Sync{ NONE, BATCH, TIMED }
+
+    /*
+     * Format enum is the file format of a log
+     */
+    public enum Format{ TEXT, BINARY }
+
+    static final int MAGIC = 0x41554454;//"AUDT"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 12;
+    static final int BLOCK_ITEMS = 4096;//max items in one binary block
+    private static final int BLOCK_BYTES = 4 + 4 * BLOCK_ITEMS + 4;//count, items and checksum
+
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    static{
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(AuditLog.class, "head", long.class);
+            TAIL = lookup.findVarHandle(AuditLog.class, "tail", long.class);
+        }
+        catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private static final int QUEUE_SIZE = 2 * BLOCK_ITEMS;//items queued for the writer, a power of two
+    private static final int MAX_LINE = 12;//"-2147483648\n"
+    private static final int TEXT_BUFFER_SIZE = BLOCK_ITEMS * MAX_LINE;//bytes of a block of text items
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static final ReentrantLock REGISTRY = new ReentrantLock();//guards changes of logs and writer
+    private static volatile AuditLog[] logs = new AuditLog[0];//open logs, replaced on every change
+    private static volatile Thread writer;//the shared writer thread, null while no log is open
+    private static final byte[] digits = new byte[MAX_LINE];//scratch space for formatting one item, writer only
+    private static final CRC32C crc = new CRC32C();//checksum of the current binary block, writer only
+
+    private final int[] queue = new int[QUEUE_SIZE];
+    private final int mask = QUEUE_SIZE - 1;
+    private long tail;//next item to be logged, only changed by the logging thread
+    private long headCache;//last value of head seen by the logging thread
+    private long head;//next item to be written, only changed by the writer thread
+
+    private final FileChannel file;
+    private final ByteBuffer buffer;//formatted items waiting for a write
+    private final Format format;
+    private int blockStart;//buffer position of the count of the current binary block
+    private int blockItems;//items in the current binary block
+    private final Sync sync;
+    private final long syncIntervalNanos;
+    private long lastSync;//time of the last force
+    private final CountDownLatch written = new CountDownLatch(1);//opened when the writer is done with the log
+    private volatile boolean closed;
+    private volatile IOException failure;//first error of the writer thread
+
+    /*
+     * AuditLog constructor is used to create the file, write the title line
+     * or the binary header and hand the log to the shared writer thread
+     */
+    public AuditLog(String fileName, String title, Format format, Sync sync, long syncIntervalMillis) throws IOException{
+        file = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.format = format;
+        this.sync = sync;
+        syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        lastSync = System.nanoTime();
+        ByteBuffer header;
+        if(format == Format.TEXT){
+            buffer = ByteBuffer.allocate(TEXT_BUFFER_SIZE);
+            header = ByteBuffer.wrap((title + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        else{
+            buffer = ByteBuffer.allocate(BLOCK_BYTES);
+            header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putInt(BLOCK_ITEMS).flip();
+        }
+        try{
+            while(header.hasRemaining()){
+                file.write(header);
+            }
+        }
+        catch(IOException e){
+            file.close();
+            throw e;
+        }
+        register(this);
+    }
+
+    /*
+     * open method is used to create a log with the format and policy given by the system properties
+     * audit.format (text or binary), audit.sync (none, batch or timed)
+     * and audit.syncMillis (interval of timed, default 1000)
+     * a binary log gets the extension .audit instead of .txt
+     */
+    public static AuditLog open(String fileName, String title) throws IOException{
+        Format format = Format.valueOf(System.getProperty("audit.format", "text").toUpperCase());
+        Sync sync = Sync.valueOf(System.getProperty("audit.sync", "none").toUpperCase());
+        long interval = Long.getLong("audit.syncMillis", 1000);
+        if(format == Format.BINARY && fileName.endsWith(".txt")){
+            fileName = fileName.substring(0, fileName.length() - 4) + ".audit";
+        }
+        return new AuditLog(fileName, title, format, sync, interval);
+    }
+
+    /*
+     * log method is used to hand an item to the writer thread
+     * it waits only when the writer is QUEUE_SIZE items behind
+     */
+    public void log(int item){
+        long t = tail;
+        if(t - headCache >= QUEUE_SIZE){
+            while(t - (headCache = (long) HEAD.getAcquire(this)) >= QUEUE_SIZE){
+                if(failure != null || closed){
+                    return;//the writer is gone, the item cannot be logged
+                }
+                Thread.yield();
+            }
+        }
+        queue[(int) t & mask] = item;
+        TAIL.setRelease(this, t + 1);
+    }
+
+    /*
+     * close method is used to wait until every logged item is written,
+     * force the file when a sync policy is set and close it
+     * an error of the writer thread is thrown here
+     */
+    @Override
+    public void close() throws IOException{
+        if(closed){
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try{
+            written.await();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        file.close();
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    /*
+     * register method is used to add a log to the open logs
+     * and start the writer thread when it is not running
+     */
+    private static void register(AuditLog log){
+        REGISTRY.lock();
+        try{
+            AuditLog[] open = Arrays.copyOf(logs, logs.length + 1);
+            open[open.length - 1] = log;
+            logs = open;
+            if(writer == null){
+                writer = new Thread(AuditLog::writeLoop, "audit writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        finally{
+            REGISTRY.unlock();
+        }
+    }
+
+    /*
+     * unregister method is used to remove a log the writer is done with from the open logs
+     */
+    private static void unregister(AuditLog log){
+        REGISTRY.lock();
+        try{
+            AuditLog[] open = new AuditLog[logs.length - 1];
+            int n = 0;
+            for(AuditLog l : logs){
+                if(l != log){
+                    open[n++] = l;
+                }
+            }
+            logs = open;
+        }
+        finally{
+            REGISTRY.unlock();
+        }
+    }
+
+    /*
+     * writeLoop method is run by the shared writer thread, it drains every open log in turn
+     * the writer parks for a short while when no log had anything to write,
+     * so a logging thread never has to wake it up
+     * it ends when no log is open, the next log that is opened starts a new writer
+     */
+    private static void writeLoop(){
+        while(true){
+            boolean busy = false;
+            for(AuditLog log : logs){
+                busy |= log.drain();
+            }
+            if(!busy){
+                REGISTRY.lock();
+                try{
+                    if(logs.length == 0){
+                        writer = null;
+                        return;
+                    }
+                }
+                finally{
+                    REGISTRY.unlock();
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /*
+     * drain method is used by the writer to format every queued item of the log
+     * and write the buffer whenever it is full or the queue runs empty
+     * a closed log with an empty queue is forced when a sync policy is set,
+     * removed from the open logs and handed back to close
+     * true is returned when the writer did some work for the log
+     */
+    private boolean drain(){
+        try{
+            boolean closing = closed;//read before the queue, so no item logged before close is missed
+            long t = (long) TAIL.getAcquire(this);
+            long h = head;
+            if(h == t){
+                boolean pending = buffer.position() > 0 || blockItems > 0;
+                writeBuffer();
+                if(closing){
+                    if(sync != Sync.NONE){
+                        file.force(false);
+                    }
+                    finish();
+                    return true;
+                }
+                return pending;
+            }
+            while(h < t){
+                if(buffer.remaining() < (format == Format.TEXT ? MAX_LINE : blockItems == 0 ? BLOCK_BYTES : 0)){
+                    HEAD.setRelease(this, h);//free the slots before the slow write
+                    writeBuffer();
+                }
+                if(format == Format.TEXT){
+                    format(queue[(int) h & mask]);
+                }
+                else{
+                    append(queue[(int) h & mask]);
+                }
+                h++;
+            }
+            HEAD.setRelease(this, h);
+        }
+        catch(IOException e){
+            failure = e;
+            finish();
+        }
+        return true;
+    }
+
+    /*
+     * finish method is used when the writer is done with the log
+     */
+    private void finish(){
+        unregister(this);
+        written.countDown();
+    }
+
+    /*
+     * format method is used to append an item as decimal text and a new line to the buffer
+     */
+    private void format(int item){
+        int pos = MAX_LINE;
+        digits[--pos] = '\n';
+        long value = item;//long, so the minimum int can be negated
+        boolean negative = value < 0;
+        if(negative){
+            value = -value;
+        }
+        do{
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        }while(value != 0);
+        if(negative){
+            digits[--pos] = '-';
+        }
+        buffer.put(digits, pos, MAX_LINE - pos);
+    }
+
+    /*
+     * append method is used to add an item to the current binary block
+     * a new block is started when there is none and a full block is closed
+     * the caller makes sure a whole block fits in the buffer before a new one is started
+     */
+    private void append(int item){
+        if(blockItems == 0){
+            blockStart = buffer.position();
+            buffer.putInt(0);//item count, set when the block is closed
+        }
+        buffer.putInt(item);
+        blockItems++;
+        if(blockItems == BLOCK_ITEMS){
+            closeBlock();
+        }
+    }
+
+    /*
+     * closeBlock method is used to set the item count of the current binary block
+     * and append the checksum of its items
+     */
+    private void closeBlock(){
+        buffer.putInt(blockStart, blockItems);
+        ByteBuffer items = buffer.duplicate();
+        items.limit(buffer.position()).position(blockStart + 4);
+        crc.reset();
+        crc.update(items);
+        buffer.putInt((int) crc.getValue());
+        blockItems = 0;
+    }
+
+    /*
+     * writeBuffer method is used to write the formatted items to the file
+     * and apply the sync policy, an open binary block is closed first
+     */
+    private void writeBuffer() throws IOException{
+        if(blockItems > 0){
+            closeBlock();
+        }
+        if(buffer.position() == 0){
+            return;
+        }
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            file.write(buffer);
+        }
+        buffer.clear();
+        long now = System.nanoTime();
+        if(sync == Sync.BATCH || (sync == Sync.TIMED && now - lastSync >= syncIntervalNanos)){
+            file.force(false);
+            lastSync = now;
+        }
+    }
+}//end AuditLog
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/*
+ * AuditVerifier class checks that a consumer took exactly the items a producer put,
+ * in the same order, using the binary audit files of both
+ *   java AuditVerifier produced.audit consumed.audit
+ * both files are memory mapped and read in one pass, every block checksum is checked
+ * on the way, so the run time is linear in the file size
+ * the first divergence is reported as a lost, duplicated or reordered item,
+ * a damaged file is reported as corrupt
+ * the exit status is 0 when the files match and 1 otherwise
+ */
+public class AuditVerifier{
+
+    public static void main(String[] args){
+        if(args.length != 2){
+            System.out.println("usage: java AuditVerifier produced.audit consumed.audit");
+            System.exit(2);
+        }
+        String result;
+        try(Reader produced = new Reader(Paths.get(args[0]));
+            Reader consumed = new Reader(Paths.get(args[1]))){
+            result = verify(produced, consumed);
+        }
+        catch(IOException e){
+            result = "CORRUPT " + e.getMessage();
+        }
+        System.out.println(result);
+        System.exit(result.startsWith("OK") ? 0 : 1);
+    }
+
+    /*
+     * verify method is used to compare both item streams
+     * a description of the first divergence, or of the match, is returned
+     */
+    static String verify(Reader produced, Reader consumed) throws IOException{
+        long index = 0;
+        boolean hasPrevious = false;
+        int previous = 0;//produced item before index
+        while(produced.hasNext() && consumed.hasNext()){
+            int p = produced.next();
+            int c = consumed.next();
+            if(p != c){
+                if(hasPrevious && c == previous){
+                    return "DUPLICATE at item " + index + ": " + c + " was consumed again, expected " + p;
+                }
+                if(produced.hasNext() && c == produced.peek()){
+                    return "LOST at item " + index + ": " + p + " was never consumed, next consumed is " + c;
+                }
+                return "REORDERED at item " + index + ": expected " + p + ", consumed " + c;
+            }
+            previous = p;
+            hasPrevious = true;
+            index++;
+        }
+        if(produced.hasNext()){
+            return "LOST at item " + index + ": " + produced.next() + " and every later item was never consumed";
+        }
+        if(consumed.hasNext()){
+            return "DUPLICATE at item " + index + ": " + consumed.next() + " was consumed but never produced";
+        }
+        return "OK " + index + " items match";
+    }
+
+    /*
+     * Reader class streams the items of a binary audit file
+     * the file is mapped in windows of up to WINDOW bytes, so files larger than 2 GB work too
+     */
+    static final class Reader implements AutoCloseable{
+        private static final long WINDOW = 1L << 30;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer map;//current window
+        private long mapStart;//file position of the current window
+        private long position;//file position of the next block
+        private int[] block;//items of the current block
+        private int blockItems;//number of items in the current block
+        private int next;//index of the next item in the current block
+        private final CRC32C crc = new CRC32C();
+
+        Reader(Path path) throws IOException{
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            size = channel.size();
+            if(size < AuditLog.HEADER_BYTES){
+                throw new IOException(path + ": not a binary audit file");
+            }
+            map(0, AuditLog.HEADER_BYTES);
+            if(map.getInt(0) != AuditLog.MAGIC || map.getInt(4) != AuditLog.VERSION){
+                throw new IOException(path + ": not a binary audit file of version " + AuditLog.VERSION);
+            }
+            int maxItems = map.getInt(8);
+            if(maxItems <= 0){
+                throw new IOException(path + ": bad block size " + maxItems);
+            }
+            block = new int[maxItems];
+            position = AuditLog.HEADER_BYTES;
+        }
+
+        boolean hasNext() throws IOException{
+            while(next == blockItems){
+                if(position == size){
+                    return false;
+                }
+                readBlock();
+            }
+            return true;
+        }
+
+        /*
+         * next method returns the next item, hasNext must be checked first
+         */
+        int next(){
+            return block[next++];
+        }
+
+        /*
+         * peek method returns the next item without taking it, hasNext must be checked first
+         */
+        int peek(){
+            return block[next];
+        }
+
+        /*
+         * readBlock method is used to decode the block at position and check its checksum
+         */
+        private void readBlock() throws IOException{
+            if(size - position < 8){
+                throw new IOException(path + ": truncated block at byte " + position);
+            }
+            map(position, 4);
+            int count = map.getInt((int) (position - mapStart));
+            long bytes = 4 + 4L * count + 4;
+            if(count <= 0 || count > block.length || size - position < bytes){
+                throw new IOException(path + ": bad block at byte " + position + ", count " + count);
+            }
+            map(position, bytes);
+            int offset = (int) (position - mapStart) + 4;
+            for(int i = 0; i < count; i++){
+                block[i] = map.getInt(offset + 4 * i);
+            }
+            MappedByteBuffer items = map.duplicate();
+            items.limit(offset + 4 * count).position(offset);
+            crc.reset();
+            crc.update(items);
+            if((int) crc.getValue() != map.getInt(offset + 4 * count)){
+                throw new IOException(path + ": checksum mismatch in block at byte " + position);
+            }
+            blockItems = count;
+            next = 0;
+            position += bytes;
+        }
+
+        /*
+         * map method is used to make sure bytes bytes from position are in the current window
+         */
+        private void map(long position, long bytes) throws IOException{
+            if(map != null && position >= mapStart && position + bytes <= mapStart + map.capacity()){
+                return;
+            }
+            mapStart = position;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+        }
+
+        @Override
+        public void close() throws IOException{
+            channel.close();
+        }
+    }//end Reader
+}//end AuditVerifier
@@ -0,0 +1,173 @@
+import java.util.*;
+
+/*
+ * Bench class holds the parts that the benchmarks of all implementations share:
+ * key=value parameters, warmup and measured iterations, throughput and
+ * per-item latency percentiles
+ * a benchmark runs a Trial once per iteration, the warmup iterations are not reported
+ * so the JIT has compiled the hot paths before anything is measured
+ * this is an approximation of a JMH benchmark, not a replacement for one:
+ * every iteration runs in the same JVM without forks, results are not consumed by a blackhole
+ * and there is no build module that runs it, the classes are compiled and run with java
+ * use the numbers to compare the implementations on one machine, not as absolute figures
+ */
+public final class Bench{
+
+    private Bench(){
+    }
+
+    /*
+     * Trial interface is one run of a benchmark, it moves items from producers to consumers
+     * and returns what it measured
+     */
+    public interface Trial{
+        Result run() throws Exception;
+    }
+
+    /*
+     * Result class holds the number of items moved by a trial, how long it took
+     * and the sampled latencies, latencies is null when the trial could not measure them
+     */
+    public static final class Result{
+        final long items;
+        final long nanos;
+        final long[] latencies;
+
+        public Result(long items, long nanos, long[] latencies){
+            this.items = items;
+            this.nanos = nanos;
+            this.latencies = latencies;
+        }
+    }//end Result
+
+    /*
+     * Params class holds the key=value arguments of a benchmark
+     * every parameter that is read is remembered, so the report shows the values that were used
+     */
+    public static final class Params{
+        private final Map<String, String> values = new LinkedHashMap<>();
+        private final Map<String, String> used = new LinkedHashMap<>();
+
+        public Params(String[] args){
+            for(String arg : args){
+                int eq = arg.indexOf('=');
+                if(eq <= 0){
+                    throw new IllegalArgumentException("expected key=value, got " + arg);
+                }
+                values.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+
+        /*
+         * get method returns the value of a parameter or def when it was not given
+         */
+        public String get(String key, String def){
+            String value = values.getOrDefault(key, def);
+            used.put(key, value);
+            return value;
+        }
+
+        public int getInt(String key, int def){
+            return Integer.parseInt(get(key, Integer.toString(def)).replace("_", ""));
+        }
+
+        public long getLong(String key, long def){
+            return Long.parseLong(get(key, Long.toString(def)).replace("_", ""));
+        }
+
+        @Override
+        public String toString(){
+            return used.toString();
+        }
+    }//end Params
+
+    /*
+     * LatencyRecorder class samples the time from put to take of every sampleEvery-th item
+     * it only works when the items of one producer are taken in order by one consumer,
+     * the producer calls sent(i) right before putting item i and the consumer calls
+     * received(i) right after taking it, the arrays are read after both threads are joined
+     */
+    public static final class LatencyRecorder{
+        private final int sampleEvery;
+        private final long[] sent;
+        private final long[] received;
+
+        public LatencyRecorder(long items, int sampleEvery){
+            this.sampleEvery = sampleEvery;
+            int samples = (int) Math.min(Integer.MAX_VALUE - 8, (items + sampleEvery - 1) / sampleEvery);
+            sent = new long[samples];
+            received = new long[samples];
+        }
+
+        /*
+         * sampled method tells if the latency of item i is recorded
+         */
+        public boolean sampled(long i){
+            return i % sampleEvery == 0 && i / sampleEvery < sent.length;
+        }
+
+        public void sent(long i){
+            if(sampled(i)){
+                sent[(int) (i / sampleEvery)] = System.nanoTime();
+            }
+        }
+
+        public void received(long i){
+            if(sampled(i)){
+                received[(int) (i / sampleEvery)] = System.nanoTime();
+            }
+        }
+
+        public long[] latencies(){
+            long[] latencies = new long[sent.length];
+            for(int i = 0; i < latencies.length; i++){
+                latencies[i] = received[i] - sent[i];
+            }
+            return latencies;
+        }
+    }//end LatencyRecorder
+
+    /*
+     * run method is used to run a trial warmups + iterations times and print
+     * the throughput of every measured iteration, the mean and the latency percentiles
+     * of all measured iterations together
+     */
+    public static void run(String name, Params params, Trial trial) throws Exception{
+        int warmups = params.getInt("warmups", 3);
+        int iterations = params.getInt("iterations", 5);
+        System.out.println("# " + name + " " + params);
+        for(int i = 0; i < warmups; i++){
+            Result result = trial.run();
+            System.out.printf("warmup %d: %,.0f items/s%n", i + 1, rate(result));
+        }
+        double total = 0;
+        List<long[]> latencies = new ArrayList<>();
+        for(int i = 0; i < iterations; i++){
+            Result result = trial.run();
+            total += rate(result);
+            System.out.printf("iteration %d: %,.0f items/s%n", i + 1, rate(result));
+            if(result.latencies != null){
+                latencies.add(result.latencies);
+            }
+        }
+        System.out.printf("throughput: %,.0f items/s (mean of %d)%n", total / iterations, iterations);
+        if(!latencies.isEmpty()){
+            long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+            System.out.printf("latency ns: p50=%,d p90=%,d p99=%,d p99.9=%,d p99.99=%,d max=%,d (%,d samples)%n",
+                    percentile(all, 50), percentile(all, 90), percentile(all, 99),
+                    percentile(all, 99.9), percentile(all, 99.99), all[all.length - 1], all.length);
+        }
+    }
+
+    private static double rate(Result result){
+        return result.items * 1e9 / result.nanos;
+    }
+
+    /*
+     * percentile method returns the p-th percentile of sorted values
+     */
+    static long percentile(long[] sorted, double p){
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}//end Bench
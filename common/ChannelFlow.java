@@ -0,0 +1,294 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * ChannelFlow class adapts an IntChannel to java.util.concurrent.Flow,
+ * so a channel can be plugged into reactive code that must not block
+ * publisher turns the channel into a Flow.Publisher: items are polled in runs of at most
+ * the outstanding demand and handed to the subscriber, CLOSED becomes onComplete
+ * and a channel closed with a cause becomes onError
+ * subscriber turns the channel into a Flow.Subscriber: at most batch items are requested
+ * ahead, each item is offered to the channel and more are requested as items get in,
+ * onComplete closes the channel, onError closes it with the error as its cause
+ * neither side ever parks a thread: all work runs as short tasks on the given executor
+ * and a channel that is empty (publisher) or full (subscriber) is retried after a delay
+ * that doubles from MIN_RETRY_NANOS up to MAX_RETRY_NANOS
+ */
+public final class ChannelFlow{
+    private static final long MIN_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private ChannelFlow(){
+    }
+
+    /*
+     * publisher method returns a publisher of the items taken from channel,
+     * every subscriber competes for the items like another consumer
+     */
+    public static Flow.Publisher<Integer> publisher(IntChannel channel, Executor executor, int batch){
+        if(batch < 1){
+            throw new IllegalArgumentException("batch: " + batch);
+        }
+        return subscriber -> {
+            ChannelSubscription subscription = new ChannelSubscription(channel, executor, batch, subscriber);
+            subscriber.onSubscribe(subscription);
+        };
+    }
+
+    /*
+     * subscriber method returns a subscriber that puts every item it receives into channel
+     */
+    public static Flow.Subscriber<Integer> subscriber(IntChannel channel, Executor executor, int batch){
+        if(batch < 1){
+            throw new IllegalArgumentException("batch: " + batch);
+        }
+        return new ChannelSubscriber(channel, executor, batch);
+    }
+
+    /*
+     * Retry class schedules a task after a delay that grows while nothing can be done
+     * at most one retry is scheduled at a time
+     */
+    private static final class Retry{
+        private final Executor executor;
+        private final Runnable task;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private long delay = MIN_RETRY_NANOS;
+
+        Retry(Executor executor, Runnable task){
+            this.executor = executor;
+            this.task = task;
+        }
+
+        /*
+         * schedule method is called by the draining task when the channel blocked it
+         */
+        void schedule(){
+            if(scheduled.compareAndSet(false, true)){
+                long nanos = delay;
+                delay = Math.min(2 * delay, MAX_RETRY_NANOS);
+                CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS, executor).execute(() -> {
+                    scheduled.set(false);
+                    task.run();
+                });
+            }
+        }
+
+        /*
+         * reset method is called by the draining task after it made progress
+         */
+        void reset(){
+            delay = MIN_RETRY_NANOS;
+        }
+    }//end Retry
+
+    /*
+     * ChannelSubscription class is the subscription of one subscriber of a channel publisher
+     * request, retries and cancel only schedule a drain, the drain loop runs on the executor
+     * and is never run by two threads at once, so the subscriber is signalled serially
+     */
+    private static final class ChannelSubscription implements Flow.Subscription{
+        private final IntChannel channel;
+        private final Executor executor;
+        private final Flow.Subscriber<? super Integer> subscriber;
+        private final int[] items;//items polled from the channel
+        private final AtomicLong demand = new AtomicLong();//items requested and not yet delivered
+        private final AtomicInteger wip = new AtomicInteger();//drains scheduled, 0 when idle
+        private final Retry retry;
+        private volatile boolean cancelled;
+        private volatile Throwable badRequest;//set by a request of zero or less
+        private boolean done;//onComplete or onError was signalled, only used by the drain loop
+
+        ChannelSubscription(IntChannel channel, Executor executor, int batch, Flow.Subscriber<? super Integer> subscriber){
+            this.channel = channel;
+            this.executor = executor;
+            this.subscriber = subscriber;
+            items = new int[batch];
+            retry = new Retry(executor, this::schedule);
+        }
+
+        @Override
+        public void request(long n){
+            if(n <= 0){
+                badRequest = new IllegalArgumentException("request must be positive: " + n);
+            }
+            else{
+                //add to the demand, an unbounded demand stays at Long.MAX_VALUE
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+        }
+
+        private void schedule(){
+            if(wip.getAndIncrement() == 0){
+                executor.execute(this::drain);
+            }
+        }
+
+        /*
+         * drain method is used to deliver items while there is demand
+         * items are polled in runs of at most the demand, a polled run is always delivered
+         * in full, so no item is lost when the subscriber cancels in the middle of it
+         */
+        private void drain(){
+            int missed = 1;
+            do{
+                if(!done && !cancelled && badRequest != null){
+                    done = true;
+                    subscriber.onError(badRequest);
+                }
+                long delivered = 0;
+                long wanted = demand.get();
+                while(!done && !cancelled && delivered < wanted){
+                    int n;
+                    try{
+                        n = channel.poll(items, (int) Math.min(items.length, wanted - delivered));
+                    }
+                    catch(CompletionException e){
+                        done = true;//the producer of the channel failed
+                        subscriber.onError(e.getCause());
+                        break;
+                    }
+                    if(n == IntChannel.CLOSED){
+                        done = true;
+                        subscriber.onComplete();
+                        break;
+                    }
+                    if(n == 0){
+                        retry.schedule();//nothing to take, try again later
+                        break;
+                    }
+                    retry.reset();
+                    for(int i = 0; i < n; i++){
+                        subscriber.onNext(items[i]);
+                    }
+                    delivered += n;
+                }
+                if(delivered > 0 && wanted != Long.MAX_VALUE){
+                    demand.addAndGet(-delivered);
+                }
+                missed = wip.addAndGet(-missed);
+            }while(missed != 0);
+        }
+    }//end ChannelSubscription
+
+    /*
+     * ChannelSubscriber class offers the items it receives to a channel
+     * received items wait in a ring of batch slots until the channel takes them,
+     * one item is requested for every item the channel took, so the ring never overflows
+     * onNext only stores the item and schedules a flush, the flush runs on the executor
+     */
+    private static final class ChannelSubscriber implements Flow.Subscriber<Integer>{
+        private final IntChannel channel;
+        private final Executor executor;
+        private final int[] pending;//items received but not yet in the channel
+        private volatile long received;//items stored in pending, only changed by onNext
+        private long flushed;//items moved to the channel, only changed by the flush loop
+        private final AtomicInteger wip = new AtomicInteger();//flushes scheduled, 0 when idle
+        private final Retry retry;
+        private volatile boolean completed;//onComplete or onError was received
+        private volatile Throwable failure;//error of onError, set before completed
+        private boolean closed;//the channel was closed, only used by the flush loop
+        private Flow.Subscription subscription;
+
+        ChannelSubscriber(IntChannel channel, Executor executor, int batch){
+            this.channel = channel;
+            this.executor = executor;
+            pending = new int[batch];
+            retry = new Retry(executor, this::schedule);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){
+            if(this.subscription != null){
+                subscription.cancel();//subscribed twice
+                return;
+            }
+            this.subscription = subscription;
+            subscription.request(pending.length);
+        }
+
+        @Override
+        public void onNext(Integer item){
+            long r = received;
+            pending[(int) (r % pending.length)] = item;
+            received = r + 1;
+            schedule();
+        }
+
+        @Override
+        public void onError(Throwable error){
+            failure = error;
+            completed = true;
+            schedule();
+        }
+
+        @Override
+        public void onComplete(){
+            completed = true;
+            schedule();
+        }
+
+        private void schedule(){
+            if(wip.getAndIncrement() == 0){
+                executor.execute(this::flush);
+            }
+        }
+
+        /*
+         * flush method is used to offer the pending items to the channel in runs
+         * and request as many new items as the channel took
+         * once the upstream is done and every item is in, the channel is closed,
+         * with the error as its cause when the upstream failed
+         */
+        private void flush(){
+            int missed = 1;
+            do{
+                boolean done = completed;//read before received, so no item before the end is missed
+                long r = received;
+                while(!closed && flushed < r){
+                    int index = (int) (flushed % pending.length);
+                    int n = (int) Math.min(r - flushed, pending.length - index);
+                    int taken;
+                    try{
+                        taken = channel.offer(pending, index, n);
+                    }
+                    catch(IllegalStateException e){
+                        closed = true;//somebody else closed the channel
+                        subscription.cancel();
+                        break;
+                    }
+                    if(taken == 0){
+                        retry.schedule();//no room, try again later
+                        break;
+                    }
+                    retry.reset();
+                    flushed += taken;
+                    subscription.request(taken);
+                }
+                if(done && !closed && flushed == r){
+                    closed = true;
+                    Throwable error = failure;
+                    if(error != null){
+                        channel.close(error);
+                    }
+                    else{
+                        channel.close();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            }while(missed != 0);
+        }
+    }//end ChannelSubscriber
+}//end ChannelFlow
@@ -0,0 +1,343 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * ChannelMetrics class counts what goes through one channel:
+ * items put and taken, the time producers and consumers spent blocked,
+ * the time a socket connection spent writing
+ * and the latency from put to take of every SAMPLE_EVERY-th item
+ * the counters are LongAdders, so threads that count at the same time
+ * add to different cells instead of contending on one field
+ * a channel passes the sequence number of the first item of every put and take,
+ * item s is sampled when s is a multiple of SAMPLE_EVERY: its put time is kept in a slot
+ * and the take of the same sequence number records the difference in the histogram
+ * so the hot path costs two adds per call and a clock read per sampled item only
+ * every channel has metrics, register makes them visible through JMX
+ * (domain producer_consumer, type Channel) and through snapshots
+ */
+public final class ChannelMetrics implements ChannelMetricsMBean{
+    private static final int SAMPLE_EVERY = 1024;//must be a power of two
+    private static final int SLOTS = 256;//sampled items that can be in a channel at once
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static final List<ChannelMetrics> all = new CopyOnWriteArrayList<>();//registered metrics
+    private static final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "channel-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final int capacity;
+    private final LongAdder in = new LongAdder();
+    private final LongAdder out = new LongAdder();
+    private final LongAdder putBlocked = new LongAdder();
+    private final LongAdder takeBlocked = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final AtomicLongArray sampleSeqs = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray sampleTimes = new AtomicLongArray(SLOTS);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private boolean registered;//true between register and unregister
+
+    /*
+     * ChannelMetrics constructor is used to create the metrics of a channel,
+     * the name is kind followed by a number that is unique in this JVM
+     */
+    public ChannelMetrics(String kind, int capacity){
+        name = kind + "-" + ids.incrementAndGet();
+        this.capacity = capacity;
+        for(int i = 0; i < SLOTS; i++){
+            sampleSeqs.set(i, -1);
+        }
+    }
+
+    /*
+     * put method is used to count n items put with sequence numbers seq to seq + n - 1
+     */
+    public void put(long seq, int n){
+        in.add(n);
+        long s = firstSample(seq);
+        if(s - seq < n){
+            int slot = slot(s);
+            sampleTimes.set(slot, System.nanoTime());
+            sampleSeqs.set(slot, s);
+        }
+    }
+
+    /*
+     * take method is used to count n items taken with sequence numbers seq to seq + n - 1
+     */
+    public void take(long seq, int n){
+        out.add(n);
+        long s = firstSample(seq);
+        if(s - seq < n){
+            int slot = slot(s);
+            if(sampleSeqs.get(slot) == s){
+                latency.record(System.nanoTime() - sampleTimes.get(slot));
+            }
+        }
+    }
+
+    /*
+     * putBlocked method is used to add the time a producer waited once the wait is over,
+     * a long wait is recorded as a ChannelStall event too
+     */
+    public void putBlocked(ChannelStall stall){
+        putBlocked.add(stall.finish(name, "put"));
+    }
+
+    /*
+     * takeBlocked method is used to add the time a consumer waited once the wait is over
+     */
+    public void takeBlocked(ChannelStall stall){
+        takeBlocked.add(stall.finish(name, "take"));
+    }
+
+    /*
+     * written method is used to add the time a write to a socket took once it is over,
+     * it is write time and not put blocked time, since every frame takes some time to write
+     * a long write waited for room in the socket send buffer, it is a ChannelStall of operation write
+     */
+    public void written(ChannelStall write){
+        writeNanos.add(write.finish(name, "write"));
+    }
+
+    /*
+     * creditBlocked method is used to add the time a producer waited
+     * for the consumer to grant credit, it counts as put time and a long wait
+     * is a ChannelStall of operation credit
+     */
+    public void creditBlocked(ChannelStall stall){
+        putBlocked.add(stall.finish(name, "credit"));
+    }
+
+    private static long firstSample(long seq){
+        return (seq + SAMPLE_EVERY - 1) & -SAMPLE_EVERY;
+    }
+
+    private static int slot(long sample){
+        return (int) (sample / SAMPLE_EVERY) & (SLOTS - 1);
+    }
+
+    /*
+     * register method is used to show the metrics through JMX and in snapshotAll
+     * a channel that is thrown away must be unregistered
+     */
+    public synchronized ChannelMetrics register(){
+        if(!registered){
+            registered = true;
+            all.add(this);
+            try{
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName());
+            }
+            catch(JMException e){
+                System.out.println("metrics of " + name + " are not in JMX: " + e);
+            }
+        }
+        return this;
+    }
+
+    /*
+     * unregister method is used to remove the metrics from JMX and from snapshotAll
+     */
+    public synchronized void unregister(){
+        if(registered){
+            registered = false;
+            all.remove(this);
+            try{
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName());
+            }
+            catch(JMException e){
+                //it never got into JMX
+            }
+        }
+    }
+
+    private ObjectName objectName() throws JMException{
+        return new ObjectName("producer_consumer:type=Channel,name=" + name);
+    }
+
+    /*
+     * snapshot method returns the current values
+     */
+    public Snapshot snapshot(){
+        return new Snapshot(this);
+    }
+
+    /*
+     * snapshotAll method returns the current values of every registered channel
+     */
+    public static List<Snapshot> snapshotAll(){
+        List<Snapshot> snapshots = new ArrayList<>();
+        for(ChannelMetrics metrics : all){
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    /*
+     * every method is used to hand the snapshots of every registered channel to sink
+     * once per period on a daemon thread, cancel the returned future to stop
+     */
+    public static ScheduledFuture<?> every(long period, TimeUnit unit, Consumer<List<Snapshot>> sink){
+        return reporter.scheduleAtFixedRate(() -> sink.accept(snapshotAll()), period, period, unit);
+    }
+
+    /*
+     * printEvery method is used to print the snapshots every -Dmetrics milliseconds,
+     * nothing is printed and null is returned when the property is not set
+     */
+    public static ScheduledFuture<?> printEvery(){
+        long millis = Long.getLong("metrics", 0);
+        if(millis <= 0){
+            return null;
+        }
+        return every(millis, TimeUnit.MILLISECONDS, snapshots -> snapshots.forEach(System.out::println));
+    }
+
+    /*
+     * stopPrinting method is used to stop what printEvery started
+     * and print the snapshots one last time
+     */
+    public static void stopPrinting(ScheduledFuture<?> printing){
+        if(printing != null){
+            printing.cancel(false);
+            snapshotAll().forEach(System.out::println);
+        }
+    }
+
+    @Override
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public int getCapacity(){
+        return capacity;
+    }
+
+    @Override
+    public long getItemsIn(){
+        return in.sum();
+    }
+
+    @Override
+    public long getItemsOut(){
+        return out.sum();
+    }
+
+    /*
+     * getOccupancy method returns the items put and not yet taken,
+     * the two sums are not read at once, so it is an estimate while items move
+     */
+    @Override
+    public long getOccupancy(){
+        return Math.max(0, in.sum() - out.sum());
+    }
+
+    @Override
+    public long getPutBlockedNanos(){
+        return putBlocked.sum();
+    }
+
+    @Override
+    public long getTakeBlockedNanos(){
+        return takeBlocked.sum();
+    }
+
+    @Override
+    public long getWriteNanos(){
+        return writeNanos.sum();
+    }
+
+    @Override
+    public long getLatencySamples(){
+        return latency.count();
+    }
+
+    @Override
+    public long getLatencyP50(){
+        return latency.percentile(50);
+    }
+
+    @Override
+    public long getLatencyP99(){
+        return latency.percentile(99);
+    }
+
+    @Override
+    public long getLatencyP999(){
+        return latency.percentile(99.9);
+    }
+
+    @Override
+    public long getLatencyMax(){
+        return latency.max();
+    }
+
+    /*
+     * Snapshot class holds the values of one channel at one time
+     * rates are worked out from two snapshots of the same channel
+     */
+    public static final class Snapshot{
+        public final String name;
+        public final long nanoTime;
+        public final int capacity;
+        public final long itemsIn;
+        public final long itemsOut;
+        public final long putBlockedNanos;
+        public final long takeBlockedNanos;
+        public final long writeNanos;
+        public final long latencySamples;
+        public final long latencyP50;
+        public final long latencyP99;
+        public final long latencyP999;
+        public final long latencyMax;
+
+        Snapshot(ChannelMetrics metrics){
+            name = metrics.name;
+            nanoTime = System.nanoTime();
+            capacity = metrics.capacity;
+            itemsOut = metrics.out.sum();//out before in, so occupancy is not negative
+            itemsIn = metrics.in.sum();
+            putBlockedNanos = metrics.putBlocked.sum();
+            takeBlockedNanos = metrics.takeBlocked.sum();
+            writeNanos = metrics.writeNanos.sum();
+            latencySamples = metrics.latency.count();
+            latencyP50 = metrics.latency.percentile(50);
+            latencyP99 = metrics.latency.percentile(99);
+            latencyP999 = metrics.latency.percentile(99.9);
+            latencyMax = metrics.latency.max();
+        }
+
+        public long occupancy(){
+            return itemsIn - itemsOut;
+        }
+
+        /*
+         * outRate method returns the items taken per second since an earlier snapshot
+         */
+        public double outRate(Snapshot earlier){
+            return (itemsOut - earlier.itemsOut) * 1e9 / Math.max(1, nanoTime - earlier.nanoTime);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%s: in=%,d out=%,d occupancy=%,d/%d blocked put=%,dus take=%,dus writing=%,dus"
+                    + " latency ns p50=%,d p99=%,d p99.9=%,d max=%,d (%,d samples)",
+                    name, itemsIn, itemsOut, occupancy(), capacity, putBlockedNanos / 1000, takeBlockedNanos / 1000,
+                    writeNanos / 1000, latencyP50, latencyP99, latencyP999, latencyMax, latencySamples);
+        }
+    }//end Snapshot
+}//end ChannelMetrics
@@ -0,0 +1,20 @@
+/*
+ * ChannelMetricsMBean interface is what JMX shows of a registered channel, see ChannelMetrics
+ * times are in nanoseconds, latencies are from put to take of the sampled items
+ * write time is the time spent writing to a socket, only a socket connection has it
+ */
+public interface ChannelMetricsMBean{
+    String getName();
+    int getCapacity();
+    long getItemsIn();
+    long getItemsOut();
+    long getOccupancy();
+    long getPutBlockedNanos();
+    long getTakeBlockedNanos();
+    long getWriteNanos();
+    long getLatencySamples();
+    long getLatencyP50();
+    long getLatencyP99();
+    long getLatencyP999();
+    long getLatencyMax();
+}//end ChannelMetricsMBean
@@ -0,0 +1,61 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/*
+ * ChannelStall class is a Java Flight Recorder event for a put or a take that was blocked
+ * for at least the threshold of the event (1 ms unless the recording settings change it)
+ * a channel starts a stall when an operation starts to wait and finishes it when the wait is over,
+ * so the start time and the duration of the event are the ones of the wait
+ * the stall also keeps the System.nanoTime of the start, the channel metrics add up
+ * the blocked time from it whether the event is recorded or not
+ * the stalls of a socket connection are writes that waited for room in the send buffer
+ * and credit waits, where the producer had to wait for an ack of the consumer
+ * record with -XX:StartFlightRecording and look at the events with
+ *   jfr print --events producer_consumer.ChannelStall recording.jfr
+ */
+@Name("producer_consumer.ChannelStall")
+@Label("Channel Stall")
+@Category("Producer Consumer")
+@Description("A producer or consumer was blocked on a channel for longer than the threshold")
+@Threshold("1 ms")
+public final class ChannelStall extends jdk.jfr.Event{
+    @Label("Channel")
+    String channel;
+
+    @Label("Operation")
+    @Description("put, take, write or credit")
+    String operation;
+
+    private transient long since;//System.nanoTime when the wait started, not recorded
+
+    private ChannelStall(){
+    }
+
+    /*
+     * start method is used when an operation starts to wait
+     */
+    static ChannelStall start(){
+        ChannelStall stall = new ChannelStall();
+        stall.since = System.nanoTime();
+        stall.begin();
+        return stall;
+    }
+
+    /*
+     * finish method is used when the wait is over, the event is recorded
+     * when it lasted at least the threshold, the blocked nanoseconds are returned
+     */
+    long finish(String channel, String operation){
+        end();
+        long blocked = System.nanoTime() - since;
+        if(shouldCommit()){
+            this.channel = channel;
+            this.operation = operation;
+            commit();
+        }
+        return blocked;
+    }
+}//end ChannelStall
@@ -0,0 +1,58 @@
+import java.util.concurrent.CompletionException;
+
+/*
+ * IntChannel interface is the non-blocking side of a channel of integers
+ * (a ring buffer, a pipe or a message queue)
+ * offer and poll never wait: they move what fits or what is there right now,
+ * so a caller that gets 0 back retries later instead of parking a thread
+ * close ends the stream, it is called once after the last offer or put:
+ * the items already in the channel can still be taken, after that poll returns CLOSED
+ * close(cause) ends the stream because the producer failed: the items already in the channel
+ * can still be taken, after that poll and the blocking takes throw CompletionException with cause
+ * metrics counts what went through the channel, see ChannelMetrics
+ */
+public interface IntChannel{
+    int CLOSED = -1;//returned once the channel is closed and empty
+
+    /*
+     * offer method is used to add up to len items from src without waiting
+     * the number of items added is returned, 0 when the channel is full
+     * IllegalStateException is thrown when the channel is closed
+     */
+    int offer(int[] src, int off, int len);
+
+    /*
+     * poll method is used to take up to max items into dst without waiting
+     * the number of items taken is returned, 0 when the channel is empty
+     * and CLOSED when it is closed and empty
+     */
+    int poll(int[] dst, int max);
+
+    /*
+     * close method is used to end the stream after the last item
+     */
+    void close();
+
+    /*
+     * close method is used to end the stream because the producer failed with cause,
+     * consumers see the failure once they took every item that got in
+     */
+    void close(Throwable cause);
+
+    /*
+     * metrics method returns the counters of the channel
+     */
+    ChannelMetrics metrics();
+
+    /*
+     * closed method is used by a channel when a take finds it closed and empty
+     * CLOSED is returned after close, CompletionException with the cause is thrown
+     * after close(cause), failure is the cause or null
+     */
+    static int closed(Throwable failure){
+        if(failure != null){
+            throw new CompletionException("producer failed", failure);
+        }
+        return CLOSED;
+    }
+}//end IntChannel
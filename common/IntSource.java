@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * IntSource interface is where a producer gets the items it produces from
+ * items are generated one at a time when the producer asks for them,
+ * so a source never holds the whole data set in memory
+ * a source is used by one producer thread only
+ * the producer closes its source when it stops, also after an error or a cancellation,
+ * so a source that holds a file gives it back
+ */
+public interface IntSource extends AutoCloseable{
+    /*
+     * hasNext method tells if the source has another item
+     */
+    boolean hasNext();
+
+    /*
+     * next method returns the next item, hasNext must be checked first
+     */
+    int next();
+
+    /*
+     * skip method is used to drop the next n items
+     */
+    default void skip(long n){
+        for(long i = 0; i < n && hasNext(); i++){
+            next();
+        }
+    }
+
+    /*
+     * close method is used to release what the source holds, most sources hold nothing
+     */
+    @Override
+    default void close(){
+    }
+
+    /*
+     * permutation method returns a bounded source of the integers 0 to count - 1
+     * in a pseudo-random order that is fixed by seed
+     */
+    static Permutation permutation(long count, long seed){
+        return new Permutation(count, seed);
+    }
+
+    /*
+     * permutation method returns a bounded source of the integers 0 to count - 1
+     * in a new random order on every call
+     */
+    static Permutation permutation(long count){
+        return new Permutation(count, ThreadLocalRandom.current().nextLong());
+    }
+
+    /*
+     * unbounded method returns a source of pseudo-random integers that never ends
+     */
+    static IntSource unbounded(long seed){
+        return new Unbounded(seed);
+    }
+
+    /*
+     * rateLimited method returns a source that hands out the items of source
+     * at no more than itemsPerSecond
+     */
+    static IntSource rateLimited(IntSource source, long itemsPerSecond){
+        return new RateLimited(source, itemsPerSecond);
+    }
+
+    /*
+     * fromFile method returns a source of the raw big endian integers in a file
+     * the file is open until the source is closed or read to its end
+     */
+    static IntSource fromFile(Path file) throws IOException{
+        return new FileSource(file);
+    }
+
+    /*
+     * Permutation class walks the integers 0 to count - 1 in a pseudo-random order
+     * without an array: item i is the encryption of i with a small Feistel cipher
+     * over the smallest power of two that holds count, the two halves of a block
+     * differ by one bit when the number of bits is odd
+     * encrypted values of count or more are encrypted again (cycle walking) until
+     * one falls below count, so every integer below count comes out exactly once
+     * the domain is less than twice count, so less than two encryptions per item on average
+     * any item can be computed on its own, so skip is O(1) and a range of indexes
+     * can be generated by several threads at once, see fill
+     * count may be up to 2^32, the items above Integer.MAX_VALUE wrap to negative integers
+     */
+    final class Permutation implements IntSource{
+        private static final int ROUNDS = 4;
+
+        private final long count;
+        private final int highBits;//bits of the high half of the cipher block
+        private final int lowBits;//bits of the low half of the cipher block
+        private final int[] keys = new int[ROUNDS];//round keys
+        private long index;//position of the next item
+
+        Permutation(long count, long seed){
+            if(count < 0 || count > (1L << 32)){
+                throw new IllegalArgumentException("count: " + count);
+            }
+            this.count = count;
+            int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(Math.max(0, count - 1)));
+            highBits = bits / 2;
+            lowBits = bits - highBits;
+            SplittableRandom random = new SplittableRandom(seed);
+            for(int r = 0; r < ROUNDS; r++){
+                keys[r] = random.nextInt();
+            }
+        }
+
+        /*
+         * get method returns item i of the permutation, i must be below count
+         */
+        public int get(long i){
+            long x = i;
+            do{
+                x = encrypt(x);
+            }while(x >= count);
+            return (int) x;
+        }
+
+        /*
+         * fill method is used to put items from to from + dst.length - 1 into dst
+         * the array is split between the threads of the common fork join pool
+         */
+        public void fill(int[] dst, long from){
+            if(from < 0 || from + dst.length > count){
+                throw new IndexOutOfBoundsException("items " + from + " to " + (from + dst.length) + " of " + count);
+            }
+            Arrays.parallelSetAll(dst, k -> get(from + k));
+        }
+
+        /*
+         * encrypt method is one pass of the Feistel network over the whole domain
+         * every round turns (left, right) into (right, left ^ round(right)),
+         * so the halves swap sizes and are back in place after an even number of rounds
+         */
+        private long encrypt(long x){
+            int leftBits = highBits;
+            int rightBits = lowBits;
+            long left = x >>> rightBits;
+            long right = x & ((1L << rightBits) - 1);
+            for(int r = 0; r < ROUNDS; r++){
+                long next = left ^ (round(right, keys[r]) & ((1L << leftBits) - 1));
+                left = right;
+                right = next;
+                int t = leftBits;
+                leftBits = rightBits;
+                rightBits = t;
+            }
+            return (left << rightBits) | right;
+        }
+
+        /*
+         * round method is the round function, a multiplicative hash of a half block and a key
+         */
+        private static long round(long half, int key){
+            int h = ((int) half + key) * 0x9E3779B9;
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return index < count;
+        }
+
+        @Override
+        public int next(){
+            return get(index++);
+        }
+
+        @Override
+        public void skip(long n){
+            index = Math.min(count, index + Math.max(0, n));
+        }
+    }//end Permutation
+
+    /*
+     * Unbounded class hands out pseudo-random integers forever
+     */
+    final class Unbounded implements IntSource{
+        private final SplittableRandom random;
+
+        Unbounded(long seed){
+            random = new SplittableRandom(seed);
+        }
+
+        @Override
+        public boolean hasNext(){
+            return true;
+        }
+
+        @Override
+        public int next(){
+            return random.nextInt();
+        }
+    }//end Unbounded
+
+    /*
+     * RateLimited class holds every item of another source back until its time has come
+     * item k is due k / itemsPerSecond seconds after the first call to next
+     */
+    final class RateLimited implements IntSource{
+        private final IntSource source;
+        private final double nanosPerItem;
+        private long start = -1;//time of the first item
+        private long handedOut;//number of items handed out
+
+        RateLimited(IntSource source, long itemsPerSecond){
+            if(itemsPerSecond <= 0){
+                throw new IllegalArgumentException("rate: " + itemsPerSecond);
+            }
+            this.source = source;
+            nanosPerItem = 1e9 / itemsPerSecond;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return source.hasNext();
+        }
+
+        @Override
+        public int next(){
+            long now = System.nanoTime();
+            if(start < 0){
+                start = now;
+            }
+            long due = start + (long) (handedOut * nanosPerItem);
+            while(now < due){
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+            handedOut++;
+            return source.next();
+        }
+
+        @Override
+        public void skip(long n){
+            source.skip(n);
+        }
+
+        @Override
+        public void close(){
+            source.close();
+        }
+    }//end RateLimited
+
+    /*
+     * FileSource class reads raw big endian integers from a file through a reusable buffer
+     * read errors are thrown as UncheckedIOException, so is a file that ends
+     * in the middle of an integer
+     * the file is closed at its end or by close, whichever comes first
+     */
+    final class FileSource implements IntSource{
+        private final FileChannel file;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private boolean eof;
+
+        FileSource(Path path) throws IOException{
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            buffer.flip();//empty
+        }
+
+        @Override
+        public boolean hasNext(){
+            try{
+                while(buffer.remaining() < 4 && !eof){
+                    buffer.compact();
+                    eof = file.read(buffer) < 0;
+                    buffer.flip();
+                }
+                if(eof && buffer.remaining() < 4){
+                    file.close();
+                    if(buffer.hasRemaining()){
+                        throw new IOException("file ends with a partial integer of " + buffer.remaining() + " bytes");
+                    }
+                    return false;
+                }
+                return true;
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public int next(){
+            return buffer.getInt();
+        }
+
+        @Override
+        public void close(){
+            try{
+                file.close();
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }//end FileSource
+}//end IntSource
@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * LatencyHistogram class counts latencies in nanoseconds in log-linear buckets,
+ * like an HDR histogram with a fixed precision
+ * values below SUB_BUCKETS have a bucket each, above that every power of two is split
+ * into SUB_BUCKETS buckets, so a percentile is off by at most 1 / SUB_BUCKETS (about 3%)
+ * whatever the value, and the whole range of long fits in under 2000 buckets
+ * record is lock-free and may be called by any number of threads
+ */
+public final class LatencyHistogram{
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /*
+     * record method is used to count one latency, negative values count as 0
+     */
+    public void record(long nanos){
+        counts.incrementAndGet(bucket(Math.max(0, nanos)));
+    }
+
+    /*
+     * count method returns the number of recorded latencies
+     */
+    public long count(){
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /*
+     * percentile method returns the p-th percentile (0 to 100) of the recorded latencies,
+     * it is the highest value of the bucket it falls in, 0 when nothing was recorded
+     */
+    public long percentile(double p){
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += copy[i];
+            if(seen >= rank){
+                return highest(i);
+            }
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    /*
+     * max method returns the highest value of the highest bucket that holds a latency
+     */
+    public long max(){
+        for(int i = BUCKETS - 1; i >= 0; i--){
+            if(counts.get(i) != 0){
+                return highest(i);
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * bucket method returns the bucket of a value
+     */
+    static int bucket(long value){
+        if(value < SUB_BUCKETS){
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);//SUB_BITS or more
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /*
+     * highest method returns the highest value that falls in a bucket
+     */
+    static long highest(int bucket){
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long low = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        long width = 1L << (exponent - SUB_BITS);
+        return low + width - 1;
+    }
+}//end LatencyHistogram
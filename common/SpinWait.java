@@ -0,0 +1,89 @@
+import java.util.function.BooleanSupplier;
+
+/*
+ * SpinWait class is the first phase of a wait: before a thread parks on a lock,
+ * a semaphore or a condition it spins with Thread.onSpinWait and then yields a few times,
+ * so a handoff to a thread that is only nanoseconds away does not pay for a park and unpark
+ * the spin budget adapts to the recent waits:
+ * a wait that ended after k spins moves the budget toward 2k,
+ * a wait that outlasted the budget shrinks it by a quarter, down to MIN_SPINS
+ * so spinning stops costing processor time when the other side is usually slow
+ * the most spins are set with -Dspin.max (default 4096), with 0 a thread only yields
+ * on a single processor nothing can happen while a thread spins, so it only yields
+ * one SpinWait is used by the threads of one side of a channel, the budget is a plain
+ * field: a lost update only makes one budget slightly off
+ */
+public final class SpinWait{
+    private static final int MIN_SPINS = 16;
+    private static final int YIELDS = 4;//yields after the spins, before the caller parks
+    private static final int MAX_SPINS = Runtime.getRuntime().availableProcessors() > 1
+        ? Integer.getInteger("spin.max", 4096) : 0;
+
+    private final int maxSpins;
+    private int budget;//spins before yielding
+
+    /*
+     * SpinWait constructor is used to create a spin phase with the default max spins
+     */
+    public SpinWait(){
+        this(MAX_SPINS);
+    }
+
+    /*
+     * SpinWait constructor is used to create a spin phase of at most maxSpins spins
+     */
+    public SpinWait(int maxSpins){
+        this.maxSpins = Math.max(0, maxSpins);
+        budget = Math.min(this.maxSpins, 256);
+    }
+
+    /*
+     * budget method returns how many times a waiting thread should spin right now
+     */
+    public int budget(){
+        return budget;
+    }
+
+    /*
+     * record method is used to tell how many spins a wait needed,
+     * more than the budget means the wait did not end while spinning
+     */
+    public void record(int spins){
+        int b = budget;
+        if(spins <= b){
+            b += (2 * spins - b) / 4;
+        }
+        else{
+            b -= b / 4;
+        }
+        budget = Math.min(maxSpins, Math.max(Math.min(MIN_SPINS, maxSpins), b));
+    }
+
+    /*
+     * spinUntil method is used to spin and then yield until ready returns true
+     * true is returned when it did, false when the caller has to block
+     */
+    public boolean spinUntil(BooleanSupplier ready){
+        int limit = budget;
+        for(int i = 0; i < limit; i++){
+            if(ready.getAsBoolean()){
+                record(i);
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        for(int i = 0; i < YIELDS; i++){
+            if(ready.getAsBoolean()){
+                record(limit);//just past the budget, so it grows
+                return true;
+            }
+            Thread.yield();
+        }
+        if(ready.getAsBoolean()){
+            record(limit);
+            return true;
+        }
+        record(limit + 1);
+        return false;
+    }
+}//end SpinWait
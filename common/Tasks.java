@@ -0,0 +1,98 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Tasks class creates the executors that producers, consumers and socket connections run on
+ * the kind of executor is one of
+ *   platform  a platform thread per task (cached and reused once a task is done)
+ *   virtual   a virtual thread per task, needs Java 21 or later
+ *   pool:N    N platform threads shared by all tasks, blocking tasks need one thread each,
+ *             so N must be at least the number of tasks that wait on each other
+ * the channels block with ReentrantLock, Semaphore or LockSupport and never with synchronized,
+ * so a waiting virtual thread leaves its carrier thread free
+ */
+public final class Tasks{
+
+    private Tasks(){
+    }
+
+    /*
+     * open method is used to create the executor given by the system property tasks,
+     * platform when it is not set
+     */
+    public static ExecutorService open(){
+        return open(System.getProperty("tasks", "platform"));
+    }
+
+    /*
+     * open method is used to create an executor of the given kind
+     * virtual falls back to platform threads on a Java version without virtual threads
+     */
+    public static ExecutorService open(String kind){
+        if(kind.equals("platform")){
+            return Executors.newCachedThreadPool();
+        }
+        if(kind.equals("virtual")){
+            ExecutorService virtual = virtualThreadPerTask();
+            if(virtual != null){
+                return virtual;
+            }
+            System.out.println("virtual threads need Java 21 or later, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+        if(kind.startsWith("pool:")){
+            return Executors.newFixedThreadPool(Integer.parseInt(kind.substring(5)));
+        }
+        throw new IllegalArgumentException("unknown tasks: " + kind + " (platform, virtual or pool:N)");
+    }
+
+    /*
+     * virtualThreadPerTask method looks the virtual thread executor up by reflection,
+     * so the sources still compile on Java 17, null is returned when it does not exist
+     */
+    private static ExecutorService virtualThreadPerTask(){
+        try{
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch(ReflectiveOperationException e){
+            return null;
+        }
+    }
+
+    /*
+     * close method is used to stop taking tasks and wait until every submitted task is done
+     * virtual threads do not keep the JVM alive, so a main method must wait for them
+     */
+    public static void close(ExecutorService tasks){
+        tasks.shutdown();
+        try{
+            while(!tasks.awaitTermination(1, TimeUnit.SECONDS)){
+                //keep waiting, a connection may run for a long time
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * join method is used to wait until a task is done
+     * an exception thrown by the task is printed, an interrupt is kept for the caller
+     */
+    public static void join(Future<?> task){
+        try{
+            task.get();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e){
+            System.out.println("task failed: " + e.getCause());
+        }
+    }
+}//end Tasks
@@ -0,0 +1,130 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Benchmark class measures the throughput and the send-to-receive latency
+ * of the message queue of the producer
+ * compile together with the common directory and run with key=value parameters, for example
+ *   java Benchmark items=1000000 capacity=64 batch=16
+ * items: number of items moved per iteration
+ * capacity: number of messages the queue holds
+ * producers, consumers: number of threads
+ * batch: items moved per send/drainTo call, 1 uses send/receive
+ * sample: every sample-th item has its latency recorded, single producer and consumer only
+ * warmups, iterations: number of unreported and reported runs
+ */
+public class Benchmark{
+
+    public static void main(String[] args) throws Exception{
+        Bench.Params params = new Bench.Params(args);
+        long items = params.getLong("items", 1_000_000);
+        int capacity = params.getInt("capacity", 3);
+        int producers = params.getInt("producers", 1);
+        int consumers = params.getInt("consumers", 1);
+        int batch = params.getInt("batch", 1);
+        int sample = params.getInt("sample", 100);
+
+        Bench.run("message queue", params, () -> trial(new Main.Producer(capacity), items, producers, consumers, batch, sample));
+    }
+
+    /*
+     * trial method is used to move items through the queue with the given number of
+     * producer and consumer threads, all threads are released together by a start latch
+     */
+    private static Bench.Result trial(Main.Producer queue, long items, int producers, int consumers,
+            int batch, int sample) throws Exception{
+        Bench.LatencyRecorder recorder = producers == 1 && consumers == 1 ? new Bench.LatencyRecorder(items, sample) : null;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int p = 0; p < producers; p++){
+            long count = share(items, producers, p);
+            threads.add(new Thread(() -> {
+                try{
+                    produce(queue, count, batch, recorder, start);
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for(int c = 0; c < consumers; c++){
+            long count = share(items, consumers, c);
+            threads.add(new Thread(() -> {
+                try{
+                    consume(queue, count, batch, recorder, start);
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for(Thread thread : threads){
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join();
+        }
+        long nanos = System.nanoTime() - begin;
+        return new Bench.Result(items, nanos, recorder == null ? null : recorder.latencies());
+    }
+
+    private static long share(long items, int parts, int part){
+        return items / parts + (part < items % parts ? 1 : 0);
+    }
+
+    private static void produce(Main.Producer queue, long count, int batch, Bench.LatencyRecorder recorder, CountDownLatch start) throws InterruptedException{
+        start.await();
+        if(batch == 1){
+            for(long i = 0; i < count; i++){
+                if(recorder != null){
+                    recorder.sent(i);
+                }
+                queue.send((int) i);
+            }
+            return;
+        }
+        int[] src = new int[batch];
+        for(long i = 0; i < count; ){
+            int len = (int) Math.min(batch, count - i);
+            for(int k = 0; k < len; k++){
+                src[k] = (int) (i + k);
+            }
+            int off = 0;
+            while(off < len){
+                if(recorder != null){
+                    for(int k = off; k < len; k++){
+                        recorder.sent(i + k);
+                    }
+                }
+                off += queue.send(src, off, len - off);
+            }
+            i += len;
+        }
+    }
+
+    private static void consume(Main.Producer queue, long count, int batch, Bench.LatencyRecorder recorder, CountDownLatch start) throws InterruptedException{
+        start.await();
+        if(batch == 1){
+            for(long i = 0; i < count; i++){
+                queue.receive();
+                if(recorder != null){
+                    recorder.received(i);
+                }
+            }
+            return;
+        }
+        int[] dst = new int[batch];
+        for(long i = 0; i < count; ){
+            int n = queue.drainTo(dst, (int) Math.min(batch, count - i));
+            if(recorder != null){
+                for(int k = 0; k < n; k++){
+                    recorder.received(i + k);
+                }
+            }
+            i += n;
+        }
+    }
+
+}//end Benchmark
@@ -1,5 +1,10 @@
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,12 +18,20 @@ public class Main {
     /*
     * man method is used to initialize all objects are needed for testing 
     * producer consumer solution
+    * both run as tasks on the executor chosen with -Dtasks=platform|virtual|pool:N, see Tasks
     */
     public static void main(String[] args) {
         Producer producer = new Producer();
         Consumer consumer = new Consumer(producer);
-        producer.start();
-        consumer.start();
+        producer.metrics().register();
+        ScheduledFuture<?> printing = ChannelMetrics.printEvery();//only with -Dmetrics=millis
+        ExecutorService tasks = Tasks.open();
+        Future<?> produced = tasks.submit(producer);
+        Future<?> consumed = tasks.submit(consumer);
+        Tasks.join(produced);
+        Tasks.join(consumed);//the consumer stops once the producer closed its queue and it is empty
+        tasks.shutdown();
+        ChannelMetrics.stopPrinting(printing);
         //read contents from the files to check if two processes communicated correctly
         readFile("produced.txt");
         readFile("consumed.txt");
@@ -26,111 +39,498 @@ public class Main {
     
     
 /*
- * Producer class is an implementation of an object that produces integer data
- * randomly and sends it inderectly to the consumer using a queue (FIFO) that can hold up to 3 items
- * producer extends thread allowing create a seperate thread for producing data
+ * Producer class is an implementation of an object that produces the integers of an IntSource
+ * and sends them inderectly to the consumer using a queue (FIFO) that can hold up to 3 items
+ * producer is a task, so it can run on a seperate thread or on an executor for producing data
+ * offer and poll are the non-blocking versions of send and drainTo
  */   
-public static class Producer extends Thread{
+public static class Producer implements Runnable, IntChannel{
     private static final int SIZE = 3;//max size of a queue
-    int[] randNums;
-    Queue<Integer> messages = new LinkedList<>();//a queue that holds messages
+    private final IntSource source;//where the produced items come from
+    IntQueue messages;//a queue that holds messages
+    private final ReentrantLock lock = new ReentrantLock();//guards the queue
+    private final Condition notFull = lock.newCondition();//senders wait here while the queue is full
+    private final Condition notEmpty = lock.newCondition();//receivers wait here while the queue is empty
+    private int sendWaiters;//number of senders waiting on notFull
+    private int receiveWaiters;//number of receivers waiting on notEmpty
+    private volatile boolean closed;//true after close, no more messages are sent
+    private volatile Throwable failure;//cause given to close(cause), set before closed
+    private final SpinWait sendSpin = new SpinWait();//spin phase of a sender before it waits on notFull
+    private final SpinWait receiveSpin = new SpinWait();//spin phase of a receiver before it waits on notEmpty
+    private long sent;//integers sent since the queue was created, the sequence number of the next one
+    private final ChannelMetrics metrics;
+
+    /*
+    * Producer constructor is used to create a producer with a queue of SIZE messages
+    */
+    public Producer(){
+        this(SIZE);
+    }
+
+    /*
+    * Producer constructor is used to create a producer whose queue holds up to size messages
+    */
+    public Producer(int size){
+        this(size, IntSource.permutation(100));
+    }
+
+    /*
+    * Producer constructor is used to create a producer that sends the items of source
+    * through a queue of up to size messages
+    */
+    public Producer(int size, IntSource source){
+        messages = new IntQueue(size);
+        this.source = source;
+        metrics = new ChannelMetrics("queue", size);
+    }
     
     /*
-    * run() method is used to randomly generate 100 integer data and send it to the consumer 
+    * run() method is used to send every item of the source to the consumer 
     * by putting those integers on the message queue
+    * items are taken from the source one at a time, so the source may be unbounded
+    * the queue is closed after the last item, so the consumer knows the end,
+    * and also when the producer fails, so the consumer never waits forever
     * run() is used to write produced items to a file called produced.txt
     */
     @Override
     public void run(){
-        try{
-        randNums = new int[100];
-        fillArray(randNums);//fill an array with integers from 0 to 99
-        shuffleArray(randNums);//randomly shuffle integers
-        
-        PrintWriter write = new PrintWriter("produced.txt", "UTF-8");// writer to a file
-        write.println("Produced items:");
-        //generate a random int, put it on the queue, and write it to a file
-        for (int i = 0; i < 100; i++) {
-                int nextRand = randNums[i];
+        try(AuditLog audit = AuditLog.open("produced.txt", "Produced items:")){//asynchronous writer to a file
+        //take the next int, put it on the queue, and write it to a file
+        while(source.hasNext()){
+                int nextRand = source.next();
                 send(nextRand);
-                write.println(nextRand);
+                audit.log(nextRand);
         }
-        write.close();
         }catch(Exception e){
             
         }
+        finally{
+            close();
+            source.close();//give back what the source holds, a file for example
+        }
     }
     
     /*
     * send method is used to send an integer to the queue if there is available space
     * otherwise, the producer has to wait
+    * IllegalStateException is thrown when the queue is closed
     */
-    public synchronized void send(int num) throws InterruptedException {
-        //wait while the queue is full
-        while(messages.size() == SIZE){
-            wait();
+    public void send(int num) throws InterruptedException {
+        ChannelStall stall = spinUntilNotFull();
+        lock.lockInterruptibly();
+        try{
+            awaitNotFull(stall);//wait while the queue is full
+            boolean wasEmpty = messages.size() == 0;
+            messages.add(num);//add an int to the end of the queue
+            metrics.put(sent++, 1);
+            signalAfterSend(wasEmpty);
+        }
+        finally{
+            lock.unlock();
         }
-        messages.add(num);//add an int to the end of the queue
-        notifyAll();//notify other threads
     }
     
     /*
     * receive method is used by the consumer to receive items produced by the producer
     * consumer has to wait while the queue is empty
     * consumed item is removed from the head of the queue
+    * NoSuchElementException is thrown when the queue is closed and empty,
+    * CompletionException when it was closed with a cause
     */
-    public synchronized int receive() throws InterruptedException{       
-        notifyAll();// notify producer thread
-        //wait if queue is empty
-        while(messages.size() == 0){
-            wait();
+    public int receive() throws InterruptedException{
+        ChannelStall stall = spinUntilNotEmpty();
+        lock.lockInterruptibly();
+        try{
+            awaitNotEmpty(stall);//wait if queue is empty
+            if(messages.size() == 0){
+                IntChannel.closed(failure);
+                throw new NoSuchElementException("queue is closed");
+            }
+            boolean wasFull = messages.size() == messages.capacity();
+            //consume the integer number
+            metrics.take(sent - messages.size(), 1);
+            int num = messages.remove();
+            signalAfterReceive(wasFull);
+            return num;
+        }
+        finally{
+            lock.unlock();
         }
-        //consume the integer number
-        int num = messages.remove();
-       return num;
     }
     
     /*
-    * fillArray method is used to fill an array with integers from 0 to 100
-    * each int number value corresponds to its index in the array
-    * array of int is taken as a parameter
+    * send method is used to send up to len integers from src to the queue
+    * with one lock acquisition and at most one signal
+    * the producer waits until there is room for at least one integer
+    * the number of integers sent is returned
     */
-    private void fillArray(int[] arr){
-        for(int i = 0; i < arr.length; i++){
-            arr[i] = i;
+    public int send(int[] src, int off, int len) throws InterruptedException {
+        if(len == 0){
+            return 0;
         }
-    }//end of fillArray 
+        ChannelStall stall = spinUntilNotFull();
+        lock.lockInterruptibly();
+        try{
+            awaitNotFull(stall);//wait while the queue is full
+            return add(src, off, len);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
 
     /*
-    * shuffleArray method is used to shuffle integers in a given array
-    * using fisher yates shuffle technique
-    * array of integers is taken as a parameter
+    * drainTo method is used by the consumer to receive up to max integers into dst
+    * with one lock acquisition and at most one signal
+    * consumer has to wait while the queue is empty
+    * the number of integers received is returned, or CLOSED when the queue is closed and empty
     */
-    private void shuffleArray(int[] arr) {
-      
-    Random random = new Random();
-    int randNum = 0;
-    randNum = random.nextInt(100) + 1;
-    
-    for (int i = arr.length - 1; i > 0; i--){
-        int index = random.nextInt(i + 1);
-        // Simple swap
-        int a = arr[index];
-        arr[index] =  arr[i];
-        arr[i] = a;
-    
+    public int drainTo(int[] dst, int max) throws InterruptedException {
+        if(max == 0){
+            return 0;
+        }
+        ChannelStall stall = spinUntilNotEmpty();
+        lock.lockInterruptibly();
+        try{
+            awaitNotEmpty(stall);//wait if queue is empty
+            if(messages.size() == 0){
+                return IntChannel.closed(failure);
+            }
+            return remove(dst, max);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * offer method is used to send up to len integers from src without waiting for room,
+    * 0 is returned when the queue is full
+    */
+    @Override
+    public int offer(int[] src, int off, int len){
+        lock.lock();
+        try{
+            checkOpen();
+            if(len == 0 || messages.size() == messages.capacity()){
+                return 0;
+            }
+            return add(src, off, len);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * poll method is used to receive up to max integers into dst without waiting for a message,
+    * 0 is returned when the queue is empty and CLOSED when it is closed and empty
+    */
+    @Override
+    public int poll(int[] dst, int max){
+        lock.lock();
+        try{
+            if(messages.size() == 0){
+                return closed ? IntChannel.closed(failure) : 0;
+            }
+            if(max == 0){
+                return 0;
+            }
+            return remove(dst, max);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * add method is used to add up to len integers to the free room of the queue
+    * must be called while holding the lock, with room for at least one integer
+    */
+    private int add(int[] src, int off, int len){
+        boolean wasEmpty = messages.size() == 0;
+        int n = Math.min(len, messages.capacity() - messages.size());
+        messages.add(src, off, n);//add the ints to the end of the queue
+        metrics.put(sent, n);
+        sent += n;
+        signalAfterSend(wasEmpty);
+        return n;
+    }
+
+    /*
+    * remove method is used to remove up to max integers from the head of the queue
+    * must be called while holding the lock, with at least one integer in the queue
+    */
+    private int remove(int[] dst, int max){
+        boolean wasFull = messages.size() == messages.capacity();
+        int n = Math.min(max, messages.size());
+        metrics.take(sent - messages.size(), n);
+        messages.remove(dst, n);
+        signalAfterReceive(wasFull);
+        return n;
+    }
+
+    /*
+    * spinUntilNotFull method is used by the sender to spin for a moment while the queue is full,
+    * before it takes the lock and maybe parks on notFull
+    * it only reads the size and closed, both are checked again under the lock
+    * a stall started when the sender started waiting is returned, null when the queue was not full
+    */
+    private ChannelStall spinUntilNotFull(){
+        if(messages.size() < messages.capacity() || closed){
+            return null;
+        }
+        ChannelStall stall = ChannelStall.start();
+        sendSpin.spinUntil(() -> messages.size() < messages.capacity() || closed);
+        return stall;
+    }
+
+    /*
+    * spinUntilNotEmpty method is used by the receiver to spin for a moment while the queue is empty,
+    * before it takes the lock and maybe parks on notEmpty
+    * a stall started when the receiver started waiting is returned, null when the queue was not empty
+    */
+    private ChannelStall spinUntilNotEmpty(){
+        if(messages.size() > 0 || closed){
+            return null;
+        }
+        ChannelStall stall = ChannelStall.start();
+        receiveSpin.spinUntil(() -> messages.size() > 0 || closed);
+        return stall;
+    }
+
+    /*
+    * awaitNotFull method is used to park the sender on notFull while the queue is full
+    * the number of parked senders is tracked so receivers only signal when someone waits
+    * the whole wait, from the start of stall or from the first full check here, is counted as one put stall
+    * once there is room
+    * IllegalStateException is thrown when the queue is closed
+    * must be called while holding the lock
+    */
+    private void awaitNotFull(ChannelStall stall) throws InterruptedException {
+        checkOpen();
+        while(messages.size() == messages.capacity()){
+            if(stall == null){
+                stall = ChannelStall.start();
+            }
+            sendWaiters++;
+            try{
+                notFull.await();
+            }
+            finally{
+                sendWaiters--;
+            }
+            checkOpen();
+        }
+        if(stall != null){
+            metrics.putBlocked(stall);
+        }
+    }
+
+    /*
+    * awaitNotEmpty method is used to park the receiver on notEmpty while the queue is empty
+    * and open, the queue is empty after it returns only when it is closed
+    * the whole wait, from the start of stall or from the first empty check here, is counted as one take stall
+    * must be called while holding the lock
+    */
+    private void awaitNotEmpty(ChannelStall stall) throws InterruptedException {
+        while(messages.size() == 0 && !closed){
+            if(stall == null){
+                stall = ChannelStall.start();
+            }
+            receiveWaiters++;
+            try{
+                notEmpty.await();
+            }
+            finally{
+                receiveWaiters--;
+            }
+        }
+        if(stall != null){
+            metrics.takeBlocked(stall);
+        }
+    }
+
+    @Override
+    public ChannelMetrics metrics(){
+        return metrics;
+    }
+
+    /*
+    * close method is used to end the stream of messages after the last send
+    * every waiting receiver is woken up to receive what is left or see the end
+    */
+    @Override
+    public void close(){
+        lock.lock();
+        try{
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * close method is used by a producer that failed, the receiver gets what is left
+    * and then CompletionException with cause instead of CLOSED
+    */
+    @Override
+    public void close(Throwable cause){
+        failure = cause;
+        close();
+    }
+
+    private void checkOpen(){
+        if(closed){
+            throw new IllegalStateException("queue is closed");
+        }
+    }
+
+    /*
+    * signalAfterSend method wakes one receiver when the queue went from empty to non-empty
+    * and passes the turn to another sender if there is still room left
+    * nothing is signalled when nobody waits
+    */
+    private void signalAfterSend(boolean wasEmpty){
+        if(wasEmpty && receiveWaiters > 0){
+            notEmpty.signal();
+        }
+        if(sendWaiters > 0 && messages.size() < messages.capacity()){
+            notFull.signal();
+        }
     }
 
-    }// end shuffleList
+    /*
+    * signalAfterReceive method wakes one sender when the queue went from full to non-full
+    * and passes the turn to another receiver if there are still items left
+    * nothing is signalled when nobody waits
+    */
+    private void signalAfterReceive(boolean wasFull){
+        if(wasFull && sendWaiters > 0){
+            notFull.signal();
+        }
+        if(receiveWaiters > 0 && messages.size() > 0){
+            notEmpty.signal();
+        }
+    }
     
 }//end Producer
 
 
+/*
+ * IntQueue class is a bounded FIFO queue of primitive integers backed by an array
+ * it is used for the messages instead of a LinkedList<Integer>, so sending
+ * and receiving an integer does not box it or allocate a node
+ * the queue is not thread safe, the producer guards it with its lock
+ * only size may be read without the lock, it is volatile for that
+ */
+public static class IntQueue{
+    private final int[] items;//queued integers
+    private int head;//index of the first integer in the queue
+    private volatile int size;//number of queued integers, read without the lock by a spinning sender or receiver
+
+    /*
+     * IntQueue constructor is used to create an empty queue
+     * that holds up to capacity integers
+     */
+    public IntQueue(int capacity){
+        items = new int[capacity];
+        head = 0;
+        size = 0;
+    }
+
+    /*
+     * size method returns the number of queued integers
+     */
+    public int size(){
+        return size;
+    }
+
+    /*
+     * capacity method returns the max number of integers the queue can hold
+     */
+    public int capacity(){
+        return items.length;
+    }
+
+    /*
+     * add method is used to add an integer to the end of the queue
+     * the caller makes sure the queue is not full
+     */
+    public void add(int num){
+        if(size == items.length){
+            throw new IllegalStateException("queue is full");
+        }
+        int tail = head + size;
+        if(tail >= items.length){
+            tail -= items.length;
+        }
+        items[tail] = num;
+        size++;
+    }
+
+    /*
+     * add method is used to add len integers from src to the end of the queue
+     * at most two array copies are made, one for each side of the wrap around
+     */
+    public void add(int[] src, int off, int len){
+        if(len > items.length - size){
+            throw new IllegalStateException("queue is full");
+        }
+        int tail = head + size;
+        if(tail >= items.length){
+            tail -= items.length;
+        }
+        int first = Math.min(len, items.length - tail);
+        System.arraycopy(src, off, items, tail, first);
+        System.arraycopy(src, off + first, items, 0, len - first);
+        size += len;
+    }
+
+    /*
+     * remove method is used to remove and return the integer at the head of the queue
+     * the caller makes sure the queue is not empty
+     */
+    public int remove(){
+        if(size == 0){
+            throw new IllegalStateException("queue is empty");
+        }
+        int num = items[head];
+        head++;
+        if(head == items.length){
+            head = 0;
+        }
+        size--;
+        return num;
+    }
+
+    /*
+     * remove method is used to remove len integers from the head of the queue into dst
+     */
+    public void remove(int[] dst, int len){
+        if(len > size){
+            throw new IllegalStateException("queue holds only " + size + " items");
+        }
+        int first = Math.min(len, items.length - head);
+        System.arraycopy(items, head, dst, 0, first);
+        System.arraycopy(items, 0, dst, first, len - first);
+        head += len;
+        if(head >= items.length){
+            head -= items.length;
+        }
+        size -= len;
+    }
+}//end IntQueue
+
+
 /*
  * Consumer class is an implementation of a consumer object that
  * consumes items from a queue put there by a producer
  */
-public static class Consumer extends Thread{
+public static class Consumer implements Runnable{
     Producer producer;//producer object
     
     /*
@@ -143,7 +543,7 @@ public static class Consumer extends Thread{
     
     /*
      * run method is used to impelement the consumption of 
-     * 100 randomly generated data 
+     * all data the producer sends until it closes its queue
      * every consumed integer is printed to a file for futher 
      * verification of correctness
      */
@@ -151,17 +551,19 @@ public static class Consumer extends Thread{
     public void run(){
         
         try{
-        PrintWriter write = new PrintWriter("consumed.txt", "UTF-8");// writer to a file
-        write.println("Consumed items:");
-        for (int i = 0; i < 100; i++) {
-            try {
-                int consumedItem = producer.receive();//consume integer
-                write.println(consumedItem);//write it to a file
-            } catch (InterruptedException ex) {
-                Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
+        AuditLog audit = AuditLog.open("consumed.txt", "Consumed items:");//asynchronous writer to a file
+        int[] batch = new int[64];//integers received at once
+        int n;
+        try {
+            while((n = producer.drainTo(batch, batch.length)) != Producer.CLOSED){//consume integers
+                for(int i = 0; i < n; i++){
+                    audit.log(batch[i]);//write it to a file
+                }
             }
+        } catch (InterruptedException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, null, ex);
         }
-        write.close();//close file
+        audit.close();//close file
         }catch(Exception e){
             
         }
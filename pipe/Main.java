@@ -1,5 +1,11 @@
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -11,15 +17,23 @@ public class Main {
     
     /*
      * main method is used to initialize all objects required to start a producer and a consumer
+     * both run as tasks on the executor chosen with -Dtasks=platform|virtual|pool:N, see Tasks
      */
    public static void main(String[] args) {
         Pipe pipe = new Pipe();//initialize a pipe that will shared between a producer and a consumer
+        pipe.metrics().register();
+        ScheduledFuture<?> printing = ChannelMetrics.printEvery();//only with -Dmetrics=millis
         
         Producer producer = new Producer(pipe);//create a producer
         Consumer consumer = new Consumer(pipe);//create a consumer
        //start both
-        producer.start();
-        consumer.start();
+        ExecutorService tasks = Tasks.open();
+        Future<?> produced = tasks.submit(producer);
+        Future<?> consumed = tasks.submit(consumer);
+        Tasks.join(produced);
+        Tasks.join(consumed);//the consumer stops once the producer closed the pipe and it is empty
+        tasks.shutdown();
+        ChannelMetrics.stopPrinting(printing);
        //read contents from the files to check if two processes communicated correctly
         readFile("produced.txt");
         readFile("consumed.txt");
@@ -51,141 +65,423 @@ public class Main {
     /*
      * Pipe class is used to implement a pipe object that will be using
      * by a producer and a consumer in order to put and remove an item to/from it
+     * the producer closes the pipe after its last item, the consumer then grabs
+     * what is left and gets CLOSED from drainTo, so no item value is needed as an end marker
+     * offer and poll are the non-blocking versions of putItems and drainTo
+     * a producer or consumer interrupted while it waits gets CancellationException
      */
-    public static class Pipe{
-        private boolean empty;//indicator if the pipe is full or empty
-        private int num;//an integer that will hold a produced element by a producer
+    public static class Pipe implements IntChannel{
+        private int[] items;//items that are currently in the pipe
+        private volatile int count;//number of items in the pipe, the pipe is empty when it is 0, read without the lock while spinning
+        private int out;//index of the next item to grab
+        private final ReentrantLock lock = new ReentrantLock();//guards the items
+        private final Condition notFull = lock.newCondition();//producers wait here while the pipe is full
+        private final Condition notEmpty = lock.newCondition();//consumers wait here while the pipe is empty
+        private int placeWaiters;//number of producers waiting on notFull
+        private int grabWaiters;//number of consumers waiting on notEmpty
+        private volatile boolean closed;//true after close, no more items are placed
+        private volatile Throwable failure;//cause given to close(cause), set before closed
+        private final SpinWait placeSpin = new SpinWait();//spin phase of a producer before it waits on notFull
+        private final SpinWait grabSpin = new SpinWait();//spin phase of a consumer before it waits on notEmpty
+        private long placed;//items placed since the pipe was created, the sequence number of the next item
+        private final ChannelMetrics metrics;
         
         /*
          * Pipe constructor is use to initialize all required fields for a producer and a consumer
+         * the pipe holds one item at a time
          */
         public Pipe(){
-            empty = true;
-            num = 0;
+            this(1);
+        }
+
+        /*
+         * Pipe constructor is used to create a pipe that can hold up to capacity items
+         * so a producer can place a run of items before the consumer grabs them
+         */
+        public Pipe(int capacity){
+            items = new int[capacity];
+            count = 0;
+            out = 0;
+            metrics = new ChannelMetrics("pipe", capacity);
         }
         
         /*
          * placeItem method is used to place an item on the pipe by a producer
-         * the method is sychronized so it can be accessed only by one object at a time
-         * a producer will have to wait until the pipe is empty
-         * so the item placed was consumed by the consumer
+         * the pipe lock makes sure it is accessed only by one object at a time
+         * a producer will have to wait until there is room in the pipe
+         * so an item placed earlier was consumed by the consumer
+         * IllegalStateException is thrown when the pipe is closed
+         */
+        public void placeItem(int num){
+            ChannelStall stall = spinUntilNotFull();
+            lock.lock();
+            try{
+                awaitNotFull(stall);
+                boolean wasEmpty = count == 0;
+                items[(out + count) % items.length] = num;//place an item
+                metrics.put(placed++, 1);
+                count++;//indicate that the pipe holds one more item
+                signalAfterPlace(wasEmpty);
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+        /*
+         * grabItem method is used to remove an item from the pipe by the consumer
+         * the pipe lock makes sure it is accessed only by one object at a time
+         * a consumer will have to wait until the pipe holds an item
+         * consumed item is returned to the consumer
+         * NoSuchElementException is thrown when the pipe is closed and empty,
+         * CompletionException when it was closed with a cause
          */
-        public synchronized void placeItem(int num){
-            while(!empty){
+        public int grabItem(){
+            ChannelStall stall = spinUntilNotEmpty();
+            lock.lock();
+            try{
+                awaitNotEmpty(stall);
+                if(count == 0){
+                    IntChannel.closed(failure);
+                    throw new NoSuchElementException("pipe is closed");
+                }
+                boolean wasFull = count == items.length;
+                int num = items[out];
+                metrics.take(placed - count, 1);
+                out = (out + 1) % items.length;
+                count--;//indicate that the item was consumed
+                signalAfterGrab(wasFull);
+                return num;
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+
+        /*
+         * putItems method is used to place up to len items from src on the pipe
+         * with one lock acquisition and at most one signal
+         * a producer waits until there is room for at least one item
+         * the number of items placed is returned
+         */
+        public int putItems(int[] src, int off, int len){
+            if(len == 0){
+                return 0;
+            }
+            ChannelStall stall = spinUntilNotFull();
+            lock.lock();
+            try{
+                awaitNotFull(stall);
+                return place(src, off, len);
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+
+        /*
+         * drainTo method is used to grab up to max items from the pipe into dst
+         * with one lock acquisition and at most one signal
+         * a consumer waits until there is at least one item
+         * the number of items grabbed is returned, or CLOSED when the pipe is closed and empty
+         */
+        public int drainTo(int[] dst, int max){
+            if(max == 0){
+                return 0;
+            }
+            ChannelStall stall = spinUntilNotEmpty();
+            lock.lock();
+            try{
+                awaitNotEmpty(stall);
+                if(count == 0){
+                    return IntChannel.closed(failure);
+                }
+                return grab(dst, max);
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+
+        /*
+         * offer method is used to place up to len items from src without waiting for room,
+         * 0 is returned when the pipe is full
+         */
+        @Override
+        public int offer(int[] src, int off, int len){
+            lock.lock();
+            try{
+                checkOpen();
+                if(len == 0 || count == items.length){
+                    return 0;
+                }
+                return place(src, off, len);
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+
+        /*
+         * poll method is used to grab up to max items into dst without waiting for an item,
+         * 0 is returned when the pipe is empty and CLOSED when it is closed and empty
+         */
+        @Override
+        public int poll(int[] dst, int max){
+            lock.lock();
+            try{
+                if(count == 0){
+                    return closed ? IntChannel.closed(failure) : 0;
+                }
+                if(max == 0){
+                    return 0;
+                }
+                return grab(dst, max);
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+
+        /*
+         * place method is used to copy up to len items into the free room of the pipe
+         * must be called while holding the lock, with room for at least one item
+         */
+        private int place(int[] src, int off, int len){
+            boolean wasEmpty = count == 0;
+            int n = Math.min(len, items.length - count);
+            for(int i = 0; i < n; i++){
+                items[(out + count + i) % items.length] = src[off + i];
+            }
+            metrics.put(placed, n);
+            placed += n;
+            count += n;
+            signalAfterPlace(wasEmpty);
+            return n;
+        }
+
+        /*
+         * grab method is used to copy up to max items out of the pipe
+         * must be called while holding the lock, with at least one item in the pipe
+         */
+        private int grab(int[] dst, int max){
+            boolean wasFull = count == items.length;
+            int n = Math.min(max, count);
+            for(int i = 0; i < n; i++){
+                dst[i] = items[(out + i) % items.length];
+            }
+            metrics.take(placed - count, n);
+            out = (out + n) % items.length;
+            count -= n;
+            signalAfterGrab(wasFull);
+            return n;
+        }
+
+        /*
+         * spinUntilNotFull method is used by a producer to spin for a moment
+         * while the pipe is full, before it takes the lock and maybe waits on notFull
+         * it only reads count and closed, the state is checked again under the lock
+         * a stall started when the producer started waiting is returned, null when the pipe was not full
+         */
+        private ChannelStall spinUntilNotFull(){
+            if(count < items.length || closed){
+                return null;
+            }
+            ChannelStall stall = ChannelStall.start();
+            placeSpin.spinUntil(() -> count < items.length || closed);
+            return stall;
+        }
+
+        /*
+         * spinUntilNotEmpty method is used by a consumer to spin for a moment
+         * while the pipe is empty, before it takes the lock and maybe waits on notEmpty
+         * a stall started when the consumer started waiting is returned, null when the pipe was not empty
+         */
+        private ChannelStall spinUntilNotEmpty(){
+            if(count > 0 || closed){
+                return null;
+            }
+            ChannelStall stall = ChannelStall.start();
+            grabSpin.spinUntil(() -> count > 0 || closed);
+            return stall;
+        }
+
+        /*
+         * awaitNotFull method is used to park a producer on notFull while the pipe is full
+         * the number of parked producers is tracked so consumers only signal when someone waits
+         * the whole wait, from the start of stall or from the first full check here, is counted as one put stall
+         * once there is room
+         * IllegalStateException is thrown when the pipe is closed
+         * an interrupt while parked throws CancellationException, the flag is set again
+         * must be called while holding the lock
+         */
+        private void awaitNotFull(ChannelStall stall){
+            checkOpen();
+            while(count == items.length){
+                if(stall == null){
+                    stall = ChannelStall.start();
+                }
+                placeWaiters++;
                 try {
-                    wait();//wait
+                    notFull.await();//wait
                 } catch (InterruptedException ex) {
-                    System.out.println("error is here " + ex.toString());
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("interrupted while waiting");
+                } finally {
+                    placeWaiters--;
                 }
+                checkOpen();
             }//end while
-            
-            this.num= num;//place an item
-            empty = false;//indicate that the pipe is full
-            notifyAll();//notify all objects
+            if(stall != null){
+                metrics.putBlocked(stall);
+            }
         }
+
         /*
-         * grabItem method is used to remove an item from the pipe by the consumer
-         * the method is sychronized so it can be accessed only by one object at a time
-         * a consumer will have to wait until the pipe is full
-         * consumed item is returned to the consumer
+         * awaitNotEmpty method is used to park a consumer on notEmpty while the pipe is empty
+         * and open, the pipe is empty after it returns only when it is closed
+         * the whole wait, from the start of stall or from the first empty check here, is counted as one take stall
+         * an interrupt while parked throws CancellationException, the flag is set again
+         * must be called while holding the lock
          */
-        public synchronized int grabItem(){
-            while(empty){
+        private void awaitNotEmpty(ChannelStall stall){
+            while(count == 0 && !closed){
+                if(stall == null){
+                    stall = ChannelStall.start();
+                }
+                grabWaiters++;
                 try {
-                    wait();//wait
+                    notEmpty.await();//wait
                 } catch (InterruptedException ex) {
-                    System.out.println("error is here " + ex.toString());
-                    
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("interrupted while waiting");
+                } finally {
+                    grabWaiters--;
                 }
             }//end while
-            
-            empty = true;//indicate that the item was consumed
-            notifyAll();//notify all objects
-            return this.num;
+            if(stall != null){
+                metrics.takeBlocked(stall);
+            }
+        }
+
+        @Override
+        public ChannelMetrics metrics(){
+            return metrics;
+        }
+
+        /*
+         * close method is used by the producer after its last item
+         * every waiting consumer is woken up to grab what is left or see the end
+         */
+        @Override
+        public void close(){
+            lock.lock();
+            try{
+                closed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+
+        /*
+         * close method is used by a producer that failed, the consumer grabs what is left
+         * and then gets CompletionException with cause instead of CLOSED
+         */
+        @Override
+        public void close(Throwable cause){
+            failure = cause;
+            close();
+        }
+
+        private void checkOpen(){
+            if(closed){
+                throw new IllegalStateException("pipe is closed");
+            }
+        }
+
+        /*
+         * signalAfterPlace method wakes one consumer when the pipe went from empty to non-empty
+         * and passes the turn to another producer if there is still room left
+         * nothing is signalled when nobody waits
+         */
+        private void signalAfterPlace(boolean wasEmpty){
+            if(wasEmpty && grabWaiters > 0){
+                notEmpty.signal();
+            }
+            if(placeWaiters > 0 && count < items.length){
+                notFull.signal();
+            }
+        }
+
+        /*
+         * signalAfterGrab method wakes one producer when the pipe went from full to non-full
+         * and passes the turn to another consumer if there are still items left
+         * nothing is signalled when nobody waits
+         */
+        private void signalAfterGrab(boolean wasFull){
+            if(wasFull && placeWaiters > 0){
+                notFull.signal();
+            }
+            if(grabWaiters > 0 && count > 0){
+                notEmpty.signal();
+            }
         }
         
     }//end Pipe
     
     /*
      * Producer class is an implementation of an object that is used to produce
-     * 100 data randomly and put it on the pipe
-     * the class extends a thread
+     * the items of an IntSource and put them on the pipe
+     * by default the source is the integers from 0 to 99 in a random order
+     * the class is a task that runs on a thread of its own or on an executor
      */
-    public static class Producer extends Thread{
+    public static class Producer implements Runnable{
         Pipe pipe;//a pipe to put items on
-        private int[] randNums;//array of all random integers
+        private final IntSource source;//where the produced items come from
         
         /*
          * Producer construcor is used to initialize all objects and data types
-         * related to the producer and fill the array with integers
+         * related to the producer
          */
         public Producer(Pipe pipe){
+        this(pipe, IntSource.permutation(100));
+        }
+
+        /*
+         * Producer construcor is used to produce the items of any source
+         */
+        public Producer(Pipe pipe, IntSource source){
         this.pipe = pipe;//intialize the pipe
-        randNums = new int[100];
-        fillArray(randNums);//fill an array with integers from 0 to 99
-        shuffleArray(randNums);//randomly shuffle integers
+        this.source = source;
         }
 
         /*
          * run function is used to place all integers on the pipe and
          * write these integers to a file called produced.txt
+         * items are taken from the source one at a time, so the source may be unbounded
+         * the pipe is closed however the producer stops, so the consumer never waits forever
          */
         @Override
         public void run() {
-            try{
-                
-            
-            PrintWriter write = new PrintWriter("produced.txt", "UTF-8");// writer to a file
-            write.println("Produced items:");
+            try(AuditLog audit = AuditLog.open("produced.txt", "Produced items:")){//asynchronous writer to a file
             //put items on a pipe and write to a file
-            for (int i = 0; i < randNums.length; i++) {
-                pipe.placeItem(randNums[i]);
-                write.println(randNums[i]);
+            while(source.hasNext()){
+                int item = source.next();
+                pipe.placeItem(item);
+                audit.log(item);
               
             }
-            //place a signal item to the pipe
-            pipe.placeItem(9999);
-            write.println(9999);
-            write.close();//close file writer
             }
             catch(Exception e){
                 
             }
-            
-        }
-        
-    /*
-    * fillArray method is used to fill an array with integers from 0 to 100
-    * each int number value corresponds to its index in the array
-    * array of int is taken as a parameter
-    */
-    private void fillArray(int[] arr){
-        for(int i = 0; i < arr.length; i++){
-            arr[i] = i;
+            finally{
+                pipe.close();//tell the consumer there is nothing more
+                source.close();//give back what the source holds, a file for example
+            }
         }
-    }//end of fillArray 
-
-    /*
-    * shuffleArray method is used to shuffle integers in a given array
-    * using fisher yates shuffle technique
-    * array of integers is taken as a parameter
-    */
-    private void shuffleArray(int[] arr) {
-      
-    Random random = new Random();
-    int randNum = 0;
-    randNum = random.nextInt(100) + 1;
-    
-    for (int i = arr.length - 1; i > 0; i--){
-        int index = random.nextInt(i + 1);
-        // Simple swap
-        int a = arr[index];
-        arr[index] =  arr[i];
-        arr[i] = a;
-    
-    }
-
-    }// end shuffleList
             
     }//end Producer
     
@@ -194,7 +490,7 @@ public class Main {
      * Consumer class is an implementation of a consumer object
      * that is used to consume all items that a producer puts on a pipe
      */
-    public static class Consumer extends Thread{
+    public static class Consumer implements Runnable{
 
     Pipe pipe;// pipe used by a consumer to take items from
     /*
@@ -209,22 +505,22 @@ public class Main {
     /*
      * run method is used to consume all elements that
      * producer puts on the pipe and write them to a file
+     * the consumer stops when the pipe is closed and empty
      */
     @Override
     public  void run(){
         try{
-           PrintWriter write = new PrintWriter("consumed.txt", "UTF-8");//file writer
-           write.println("consumed items:");  
-            
+           AuditLog audit = AuditLog.open("consumed.txt", "consumed items:");//asynchronous writer to a file
             
-        int readNum =  pipe.grabItem();// consume first element
-        write.println(readNum);// write to a file
-        //consume integer data until 9999 is consumed (stop signal)
-        while(readNum != 9999){
-            readNum = pipe.grabItem();
-            write.println(readNum);  
-        }
-        write.close();//close file writer
+        int[] batch = new int[64];//items grabbed at once
+        int n;
+        //consume integer data until the pipe is closed
+        while((n = pipe.drainTo(batch, batch.length)) != Pipe.CLOSED){
+            for(int i = 0; i < n; i++){
+                audit.log(batch[i]);// write to a file
+            }
+        }
+        audit.close();//close file writer
         }
         catch(Exception e){
             
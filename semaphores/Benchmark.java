@@ -0,0 +1,179 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Benchmark class measures the throughput and the put-to-take latency
+ * of the ring buffers in this directory
+ * compile together with the common directory and run with key=value parameters, for example
+ *   java Benchmark impl=spsc items=10000000 capacity=1024 batch=64
+ * impl: semaphore, spsc, mpmc or mmap
+ * items: number of items moved per iteration
+ * capacity: ring buffer size, the semaphore ring is measured the way Main runs it:
+ *   10 slots and one producer permit, so it moves one item at a time whatever capacity says
+ * producers, consumers: number of threads, mpmc only
+ * pairs: number of independent ring buffers, each with its own producers and consumers,
+ *   the items are split between them
+ * tasks: executor the producers and consumers run on, platform, virtual or pool:N (see Tasks)
+ * batch: items moved per putItems/drainTo call, 1 uses putItem/takeItem
+ * wait: wait strategy of the lock-free rings (spin, yield, park, adaptive, block)
+ * sample: every sample-th item has its latency recorded, single producer and consumer only
+ * warmups, iterations: number of unreported and reported runs
+ * the runs are timed by Bench, a plain java harness and not JMH,
+ * so the numbers are an approximation that compares the rings with each other, see Bench
+ */
+public class Benchmark{
+
+    public static void main(String[] args) throws Exception{
+        Bench.Params params = new Bench.Params(args);
+        String impl = params.get("impl", "spsc");
+        long items = params.getLong("items", 10_000_000);
+        int capacity = params.getInt("capacity", 1024);
+        int producers = params.getInt("producers", 1);
+        int consumers = params.getInt("consumers", 1);
+        int batch = params.getInt("batch", 1);
+        String wait = params.get("wait", "yield");
+        int sample = params.getInt("sample", 100);
+        int pairs = params.getInt("pairs", 1);
+        ExecutorService tasks = Tasks.open(params.get("tasks", "platform"));
+        if(!impl.equals("mpmc") && (producers != 1 || consumers != 1)){
+            throw new IllegalArgumentException(impl + " supports one producer and one consumer only");
+        }
+
+        Bench.run("ring buffer", params, () -> {
+            List<Path> files = new ArrayList<>();
+            try{
+                List<Main.ItemBuffer> buffers = new ArrayList<>();
+                for(int i = 0; i < pairs; i++){
+                    Path file = impl.equals("mmap") ? Files.createTempFile("ring", ".dat") : null;
+                    if(file != null){
+                        files.add(file);
+                    }
+                    buffers.add(create(impl, capacity, WaitStrategy.of(wait), file));
+                }
+                return trial(buffers, tasks, items, producers, consumers, batch, sample);
+            }
+            finally{
+                for(Path file : files){
+                    Files.deleteIfExists(file);
+                }
+            }
+        });
+        tasks.shutdown();
+    }
+
+    /*
+     * create method is used to create a fresh ring buffer of the given implementation
+     */
+    private static Main.ItemBuffer create(String impl, int capacity, WaitStrategy wait, Path file) throws Exception{
+        switch(impl){
+            case "semaphore":
+                return new Main.RingBuffer();//as Main runs it
+            case "spsc":
+                return new SpscRingBuffer(capacity, wait);
+            case "mpmc":
+                return new MpmcRingBuffer(capacity, wait);
+            case "mmap":
+                return new MappedRingBuffer(file, capacity, wait);
+            default:
+                throw new IllegalArgumentException("unknown impl: " + impl);
+        }
+    }
+
+    /*
+     * trial method is used to move items through every buffer with the given number of
+     * producer and consumer tasks per buffer, all tasks are released together by a start latch
+     */
+    private static Bench.Result trial(List<Main.ItemBuffer> buffers, ExecutorService tasks, long items,
+            int producers, int consumers, int batch, int sample) throws Exception{
+        Bench.LatencyRecorder recorder = buffers.size() == 1 && producers == 1 && consumers == 1
+                ? new Bench.LatencyRecorder(items, sample) : null;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> running = new ArrayList<>();
+        for(int b = 0; b < buffers.size(); b++){
+            Main.ItemBuffer buffer = buffers.get(b);
+            long pairItems = share(items, buffers.size(), b);
+            for(int p = 0; p < producers; p++){
+                long count = share(pairItems, producers, p);
+                running.add(tasks.submit(() -> produce(buffer, count, batch, recorder, start)));
+            }
+            for(int c = 0; c < consumers; c++){
+                long count = share(pairItems, consumers, c);
+                running.add(tasks.submit(() -> consume(buffer, count, batch, recorder, start)));
+            }
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Future<?> task : running){
+            task.get();
+        }
+        long nanos = System.nanoTime() - begin;
+        return new Bench.Result(items, nanos, recorder == null ? null : recorder.latencies());
+    }
+
+    private static long share(long items, int parts, int part){
+        return items / parts + (part < items % parts ? 1 : 0);
+    }
+
+    private static void produce(Main.ItemBuffer buffer, long count, int batch, Bench.LatencyRecorder recorder, CountDownLatch start){
+        await(start);
+        if(batch == 1){
+            for(long i = 0; i < count; i++){
+                if(recorder != null){
+                    recorder.sent(i);
+                }
+                buffer.putItem((int) i);
+            }
+            return;
+        }
+        int[] src = new int[batch];
+        for(long i = 0; i < count; ){
+            int len = (int) Math.min(batch, count - i);
+            for(int k = 0; k < len; k++){
+                src[k] = (int) (i + k);
+            }
+            int off = 0;
+            while(off < len){
+                if(recorder != null){
+                    for(int k = off; k < len; k++){
+                        recorder.sent(i + k);
+                    }
+                }
+                off += buffer.putItems(src, off, len - off);
+            }
+            i += len;
+        }
+    }
+
+    private static void consume(Main.ItemBuffer buffer, long count, int batch, Bench.LatencyRecorder recorder, CountDownLatch start){
+        await(start);
+        if(batch == 1){
+            for(long i = 0; i < count; i++){
+                buffer.takeItem();
+                if(recorder != null){
+                    recorder.received(i);
+                }
+            }
+            return;
+        }
+        int[] dst = new int[batch];
+        for(long i = 0; i < count; ){
+            int n = buffer.drainTo(dst, (int) Math.min(batch, count - i));
+            if(recorder != null){
+                for(int k = 0; k < n; k++){
+                    recorder.received(i + k);
+                }
+            }
+            i += n;
+        }
+    }
+
+    private static void await(CountDownLatch start){
+        try{
+            start.await();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}//end Benchmark
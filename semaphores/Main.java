@@ -14,151 +14,374 @@ public class Main {
     /*
      * main function is used to test the correctness of the code 
      * and show that two processes cooperated properly
+     * producers and consumers run as tasks on the executor chosen with
+     * -Dtasks=platform|virtual|pool:N, see Tasks
      */
     public static void main(String[] args) {
-        Semaphore sp = new Semaphore(1);//producer semaphore
-        Semaphore sc = new Semaphore(0);//consumer semaphore
-        RingBuffer buffer = new RingBuffer(sp, sc);// object that contains semaphores and ring buffer
-        Producer producer = new Producer(buffer);//producer
-        Consumer consumer = new Consumer(buffer);//consumer
-        producer.start();
-        consumer.start();
+        if(args.length > 0 && args[0].equals("mpmc")){
+            runMpmc(args);
+            return;
+        }
+        if(args.length > 0 && args[0].startsWith("mmap-")){
+            runMapped(args);
+            return;
+        }
+        if(args.length > 0 && args[0].equals("sharded")){
+            runSharded(args);
+            return;
+        }
+        if(args.length > 0 && args[0].equals("pipeline")){
+            runPipeline(args);
+            return;
+        }
+        ItemBuffer buffer;
+        //spsc mode uses the lock-free single producer single consumer ring buffer
+        if(args.length > 0 && args[0].equals("spsc")){
+            int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+            buffer = new SpscRingBuffer(capacity);
+        }
+        else{
+            buffer = new RingBuffer();// object that contains semaphores and ring buffer
+        }
+        buffer.metrics().register();
+        ScheduledFuture<?> printing = ChannelMetrics.printEvery();//only with -Dmetrics=millis
+        ExecutorService tasks = Tasks.open();
+        Future<?> producer = tasks.submit(new Producer(buffer));//producer
+        Future<?> consumer = tasks.submit(new Consumer(buffer));//consumer
+        Tasks.join(producer);
+        buffer.close();//the consumer drains what is left and stops
+        Tasks.join(consumer);
+        tasks.shutdown();
+        ChannelMetrics.stopPrinting(printing);
         //read contents from the files to check if two processes communicated correctly
         readFile("produced.txt");
         readFile("consumed.txt");
       
     }
 
+    /*
+     * runMpmc method is used to run several producers and several consumers
+     * on one multi-producer multi-consumer ring buffer
+     * arguments: mpmc [capacity] [producers] [consumers] [spin|yield|park|adaptive|block]
+     * producer i writes to produced-i.txt and consumer j writes to consumed-j.txt
+     * the ring buffer is closed when every producer is done,
+     * the consumers take whatever is left and stop
+     */
+    private static void runMpmc(String[] args){
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int consumers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        WaitStrategy waitStrategy = WaitStrategy.of(args.length > 4 ? args[4] : "yield");
+        ItemBuffer buffer = new MpmcRingBuffer(capacity, waitStrategy);
+        buffer.metrics().register();
+        ScheduledFuture<?> printing = ChannelMetrics.printEvery();
+
+        ExecutorService tasks = Tasks.open();
+        List<Future<?>> producerTasks = new ArrayList<>();
+        List<Future<?>> consumerTasks = new ArrayList<>();
+        for(int i = 0; i < producers; i++){
+            producerTasks.add(tasks.submit(new Producer(buffer, "produced-" + i + ".txt")));
+        }
+        for(int j = 0; j < consumers; j++){
+            consumerTasks.add(tasks.submit(new Consumer(buffer, "consumed-" + j + ".txt")));
+        }
+        producerTasks.forEach(Tasks::join);
+        buffer.close();
+        consumerTasks.forEach(Tasks::join);
+        tasks.shutdown();
+        ChannelMetrics.stopPrinting(printing);
+        System.out.println(producers + " producers and " + consumers + " consumers are done");
+    }
+
+    /*
+     * runSharded method is used to run several producers and one consumer per shard
+     * on a sharded channel
+     * arguments: sharded [shards] [producers] [steal|nosteal] [capacity] [spin|yield|park|adaptive|block]
+     * producer i writes to produced-i.txt and the consumer of shard k writes to consumed-k.txt
+     * without stealing a consumer only gets the items of its own shard
+     */
+    private static void runSharded(String[] args){
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        boolean stealing = args.length > 3 && args[3].equals("steal");
+        int capacity = args.length > 4 ? Integer.parseInt(args[4]) : 1024;
+        String wait = args.length > 5 ? args[5] : "park";
+        ShardedChannel channel = new ShardedChannel(shards, capacity, () -> WaitStrategy.of(wait), stealing);
+        for(int k = 0; k < shards; k++){
+            channel.shard(k).metrics().register();
+        }
+        ScheduledFuture<?> printing = ChannelMetrics.printEvery();
+
+        ExecutorService tasks = Tasks.open();
+        List<Future<?>> producerTasks = new ArrayList<>();
+        List<Future<?>> consumerTasks = new ArrayList<>();
+        ItemSink input = channel.producer();//routes every item to the shard of its key
+        for(int i = 0; i < producers; i++){
+            producerTasks.add(tasks.submit(new Producer(input, "produced-" + i + ".txt")));
+        }
+        for(int k = 0; k < shards; k++){
+            consumerTasks.add(tasks.submit(new Consumer(channel.shard(k), "consumed-" + k + ".txt")));
+        }
+        producerTasks.forEach(Tasks::join);
+        channel.close();
+        consumerTasks.forEach(Tasks::join);
+        tasks.shutdown();
+        ChannelMetrics.stopPrinting(printing);
+        System.out.println(producers + " producers and " + shards + " shard consumers are done"
+            + (stealing ? " (with stealing)" : ""));
+    }
+
+    /*
+     * runPipeline method is used to run a pipeline of ordered stages with several workers each
+     * and check that its output is the output of the same functions applied in one thread
+     * arguments: pipeline [items] [workers]
+     */
+    private static void runPipeline(String[] args){
+        long items = args.length > 1 ? Long.parseLong(args[1]) : 1_000_000;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        long seed = System.nanoTime();
+        IntSource expected = IntSource.permutation(items, seed);
+        long[] seen = new long[2];//items that came out, items that were not the expected one
+        ExecutorService tasks = Tasks.open();
+        long start = System.nanoTime();
+        Pipeline.from(IntSource.permutation(items, seed))
+            .map(x -> 2 * x, workers, true)
+            .filter(x -> x % 3 != 0, workers, true)
+            .batch(64, (batch, count, out) -> {
+                for(int i = 0; i < count; i++){
+                    out.emit(batch[i] + 1);
+                }
+            }, workers, true)
+            .run(tasks, x -> {
+                int want;
+                do{
+                    want = 2 * expected.next();
+                }while(want % 3 == 0);
+                if(x != want + 1){
+                    seen[1]++;
+                }
+                seen[0]++;
+            });
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        tasks.shutdown();
+        System.out.println(seen[0] + " items through the pipeline in " + millis + " ms, "
+            + seen[1] + " out of order");
+    }
+
+    /*
+     * runMapped method is used to run only the producer or only the consumer
+     * on a ring buffer in a memory mapped file, so they can run in two processes
+     * arguments: mmap-producer|mmap-consumer file [capacity]
+     * start the producer first, it creates the ring buffer file
+     * the producer closes the ring when it is done, so the consumer stops
+     * after the last item, even when it is started later
+     */
+    private static void runMapped(String[] args){
+        if(args.length < 2){
+            System.out.println("usage: java Main mmap-producer|mmap-consumer file [capacity]");
+            return;
+        }
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        try{
+            MappedRingBuffer buffer = new MappedRingBuffer(java.nio.file.Paths.get(args[1]), capacity, new WaitStrategy.Parking());
+            boolean producer = args[0].equals("mmap-producer");
+            if(producer){
+                buffer.reopen();//a new stream on a ring that an earlier producer closed
+            }
+            Runnable task = producer ? new Producer(buffer) : new Consumer(buffer);
+            task.run();//the only task of this process runs on the main thread
+            if(producer){
+                buffer.close();
+            }
+            readFile(args[0].equals("mmap-producer") ? "produced.txt" : "consumed.txt");
+        }
+        catch(IOException e){
+            System.out.println("ring buffer file: " + e.getMessage());
+        }
+    }
+
     /*
      * Producer class is an implemenation of a producer object
-     * Producer sends 100 randomly generated data to a consumer
+     * Producer sends the items of an IntSource to a consumer
      * by putting it in a logical ring buffer
+     * by default the source is the integers from 0 to 99 in a random order
      */
-    public static class Producer extends Thread{
-        RingBuffer buffer;//ringBuffer object that is used to put and take items from a ring buffer
+    public static class Producer implements Runnable{
+        ItemSink buffer;//ring buffer object that is used to put items on a ring buffer
         int produced;// temp variable for storing a currently produced item
-        int[] randNums;//array for storing random integer numbers
+        IntSource source;//where the produced items come from
+        String fileName;//file that produced items are written to
         /*
          * Producer constructor is used to initialize a RingBuffer object,
          * so methods of that object can accessed by the producer
          */
-        public Producer(RingBuffer buffer){
+        public Producer(ItemSink buffer){
+            this(buffer, "produced.txt");
+        }
+
+        /*
+         * Producer constructor is used when several producers share one ring buffer
+         * so every producer writes its items to its own file
+         */
+        public Producer(ItemSink buffer, String fileName){
+            this(buffer, fileName, IntSource.permutation(100));
+        }
+
+        /*
+         * Producer constructor is used to produce the items of any source
+         */
+        public Producer(ItemSink buffer, String fileName, IntSource source){
             this.buffer = buffer;
+            this.fileName = fileName;
+            this.source = source;
             produced = 0;
-            randNums = new int[100];//array for storing random integers
-            fillArray(randNums);//fill an array with integers from 0 to 99
-            shuffleArray(randNums);//randomly shuffle integers
         }
         
         /*
-         * run method is used to send 100 data to a consumer 
+         * run method is used to send every item of the source to a consumer 
          * by putting it on the ring buffer
+         * items are taken from the source one at a time, so the source may be unbounded
          * each produced item is written to a file called producer.txt
          */
         @Override
         public void run(){
             try{
-                PrintWriter write = new PrintWriter("produced.txt", "UTF-8");// writer to a file
-                write.println("Produced items:");
-                Random rand = new Random();
-                for (int i = 0; i < 100; i++) {
-                    produced = randNums[i];
+                AuditLog audit = AuditLog.open(fileName, "Produced items:");//asynchronous writer to a file
+                while(source.hasNext()){
+                    produced = source.next();
                     buffer.putItem(produced);//put item on the ring buffer
-                    write.println(produced);//write produced item to a file
+                    audit.log(produced);//write produced item to a file
                 }
-                write.close();//close file
+                audit.close();//close file
             }catch(Exception e){
             
             }
+            finally{
+                source.close();//give back what the source holds, a file for example
+            }
         }
-        
-    /*
-    * fillArray method is used to fill an array with integers from 0 to 100
-    * each int number value corresponds to its index in the array
-    * array of int is taken as a parameter
-    */
-    private void fillArray(int[] arr){
-        for(int i = 0; i < arr.length; i++){
-            arr[i] = i;
-        }
-    }//end of fillArray 
-
-    /*
-    * shuffleArray method is used to shuffle integers in a given array
-    * using fisher yates shuffle technique
-    * array of integers is taken as a parameter
-    */
-    private void shuffleArray(int[] arr) {
-      
-    Random random = new Random();
-    int randNum = 0;
-    randNum = random.nextInt(100) + 1;
-    
-    for (int i = arr.length - 1; i > 0; i--){
-        int index = random.nextInt(i + 1);
-        // Simple swap
-        int a = arr[index];
-        arr[index] =  arr[i];
-        arr[i] = a;
-    
-    }
-
-    }// end shuffleList
     
     }//end Producer
 
     /*
      * Consumer class is the implementation of a consumer object
-     * that consumes 100 integer data from a producer
-     * by taking it from a logical ring buffer
+     * that consumes integer data from a producer
+     * by taking it from a logical ring buffer until the ring buffer is closed
      */
-    public static class Consumer extends Thread{
-        RingBuffer buffer;//RingBuffer object that is used to take produced items
-        int consumed;// temp variable to store currently consumed item
+    public static class Consumer implements Runnable{
+        private static final int BATCH = 64;//max items taken at once
+        ItemDrain buffer;//ring buffer object that is used to take produced items
+        String fileName;//file that consumed items are written to
         
         /*
          * Consumer constructor is used to initialize RingBuffer object so 
          * method for taking items can be accessed by the consumer object
          */
-        public Consumer(RingBuffer buffer){
+        public Consumer(ItemDrain buffer){
+            this(buffer, "consumed.txt");
+        }
+
+        /*
+         * Consumer constructor is used when several consumers share one ring buffer
+         * every consumer writes the items it takes to its own file
+         */
+        public Consumer(ItemDrain buffer, String fileName){
             this.buffer = buffer;
-            consumed = 0;
+            this.fileName = fileName;
         }
         
         /*
          * run method is used to consume all data produced 
          * and store each integer in a file for futher verification of correctness
+         * the consumer stops when the ring buffer is closed and empty
          */
         @Override
         public void run(){
             try{
-                PrintWriter write = new PrintWriter("consumed.txt", "UTF-8");// writer to a file
-                write.println("Consumed items:");
-                for (int i = 0; i < 100; i++) {
-                    consumed = buffer.takeItem();//take item from a ring buffer
-                    write.println(consumed);// write consumed item to a file
+                AuditLog audit = AuditLog.open(fileName, "Consumed items:");//asynchronous writer to a file
+                int[] batch = new int[BATCH];
+                int n;
+                while((n = buffer.drainTo(batch, BATCH)) != IntChannel.CLOSED){//take items from a ring buffer
+                    for(int i = 0; i < n; i++){
+                        audit.log(batch[i]);// write consumed item to a file
+                    }
                 }
-                write.close();
+                audit.close();
             }catch(Exception e){
             
             }
         }
     }//end Consumer
     
+    /*
+     * ItemSink interface is the side of a channel that producers use
+     * putItem and putItems wait for room, offer does not, close ends the stream
+     */
+    public interface ItemSink{
+        void putItem(int num);
+        int putItems(int[] src, int off, int len);
+        int offer(int[] src, int off, int len);
+        void close();
+        void close(Throwable cause);
+    }//end ItemSink
+
+    /*
+     * ItemDrain interface is the side of a channel that consumers use
+     * takeItem and drainTo wait for an item, poll does not
+     */
+    public interface ItemDrain{
+        int takeItem();
+        int drainTo(int[] dst, int max);
+        int poll(int[] dst, int max);
+        ChannelMetrics metrics();
+    }//end ItemDrain
+
+    /*
+     * ItemBuffer interface describes a ring buffer that a producer puts items on
+     * and a consumer takes items from, it is both an ItemSink and an ItemDrain
+     * both calls block until the operation can be completed
+     * putItems and drainTo move a whole run of items under one synchronization,
+     * they block until at least one item can be moved and return how many items were moved
+     * close ends the stream, it is called once after the last put has returned:
+     * the items already put can still be taken, after that drainTo returns CLOSED
+     * and takeItem throws NoSuchElementException instead of blocking,
+     * after close(cause) both throw CompletionException with the cause instead,
+     * a put after close throws IllegalStateException
+     * a put or take whose thread is interrupted while it waits throws CancellationException
+     * and leaves the interrupt flag set
+     * the non-blocking offer and poll come from IntChannel
+     */
+    public interface ItemBuffer extends IntChannel, ItemSink, ItemDrain{
+    }//end ItemBuffer
+
     /*
      * RingBuffer class is the implementation of an object
      * that is intended to be used by a consumer and a producer 
      * for producing and consuming integer data respectively
      * semaphores are used to control access to the resource (ring buffer)
      */
-    public static class RingBuffer{
+    public static class RingBuffer implements ItemBuffer{
         Semaphore sp;//producer semaphore
         Semaphore sc;//consumer semaphore
         final int SIZE = 10;// max size of a ring buffer
         int[] nums;//the ring buffer
         int in;//index for producing next int
         int out;// index for consuming next int
+        volatile int end = -1;//value of in when the ring buffer was closed, -1 while it is open
+        private volatile Throwable failure;//cause given to close(cause), set before end
+        final SpinWait putSpin = new SpinWait();//spin phase of a producer waiting for a free slot
+        final SpinWait takeSpin = new SpinWait();//spin phase of a consumer waiting for an item
+        final ChannelMetrics metrics = new ChannelMetrics("semaphore", SIZE);
         
+        /*
+         * RingBuffer constructor is used to create the ring buffer the way Main runs it:
+         * the producer semaphore starts with one permit and the consumer semaphore with none,
+         * so there is at most one item in the ring buffer at a time
+         */
+        public RingBuffer(){
+            this(new Semaphore(1), new Semaphore(0));
+        }
+
         /*
          * RingBuffer constructor is used to initialize 
          * all necessary elements for the logical ring buffer 
@@ -180,11 +403,10 @@ public class Main {
          * after consumer semaphore is released indicating that there is an item to consume
          */
         public void putItem(int num){
-            try {
-                sp.acquire();
-            } catch (Exception e) {
-            }
+            checkOpen();
+            acquire(sp, putSpin, true);
             nums[in % SIZE] = num;
+            metrics.put(in, 1);
             sc.release();
             in++;//update index
         }
@@ -194,17 +416,179 @@ public class Main {
          * the logical ring buffer by a consumer
          * first consumer semaphore is acquired and an item is removed
          * after producer semaphore is released indicating allowing producer to produce an item
+         * the extra permit released by close means there is nothing left to take
          */
         public int takeItem(){
-            try{
-                sc.acquire();
-            }catch(Exception e){
+            acquire(sc, takeSpin, false);
+            if(out == end){
+                sc.release();//leave the close permit for the next call
+                IntChannel.closed(failure);
+                throw new NoSuchElementException("ring buffer is closed");
             }
             int consumed = nums[out % SIZE];
+            metrics.take(out, 1);
             sp.release();
             out++;//update index
             return consumed;
         }
+
+        /*
+         * putItems method is used to place up to len items from src on the ring buffer
+         * one producer permit is acquired and then every other free permit is taken at once,
+         * so a whole run of items is placed with one release of the consumer semaphore
+         */
+        public int putItems(int[] src, int off, int len){
+            checkOpen();
+            if(len == 0){
+                return 0;
+            }
+            acquire(sp, putSpin, true);
+            return place(src, off, len);
+        }
+
+        /*
+         * offer method is used to place up to len items from src without waiting,
+         * 0 is returned when no producer permit is free
+         */
+        public int offer(int[] src, int off, int len){
+            checkOpen();
+            if(len == 0 || !sp.tryAcquire()){
+                return 0;
+            }
+            return place(src, off, len);
+        }
+
+        /*
+         * acquire method is used to take one permit of a semaphore
+         * it spins on tryAcquire first, so a permit that is released a moment later
+         * is taken without parking the thread
+         * the time from the first failed try to the permit is counted as blocked
+         * an interrupt while parked throws CancellationException, the flag is set again
+         */
+        private void acquire(Semaphore semaphore, SpinWait spin, boolean producer){
+            if(semaphore.tryAcquire()){
+                return;
+            }
+            ChannelStall stall = ChannelStall.start();
+            if(!spin.spinUntil(semaphore::tryAcquire)){
+                try{
+                    semaphore.acquire();
+                }
+                catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("interrupted while waiting");
+                }
+            }
+            if(producer){
+                metrics.putBlocked(stall);
+            }
+            else{
+                metrics.takeBlocked(stall);
+            }
+        }
+
+        @Override
+        public ChannelMetrics metrics(){
+            return metrics;
+        }
+
+        /*
+         * place method is used to place items once one producer permit is acquired
+         */
+        private int place(int[] src, int off, int len){
+            int permits = 1 + sp.drainPermits();
+            int n = Math.min(len, permits);
+            if(permits > n){
+                sp.release(permits - n);//give back the slots that are not used
+            }
+            for(int i = 0; i < n; i++){
+                nums[(in + i) % SIZE] = src[off + i];
+            }
+            metrics.put(in, n);
+            in += n;//update index
+            sc.release(n);
+            return n;
+        }
+
+        /*
+         * drainTo method is used to take up to max items from the ring buffer into dst
+         * one consumer permit is acquired and then every other available permit is taken at once
+         * once the ring buffer is closed one permit more than there are items is available,
+         * CLOSED is returned when that is the only one left
+         */
+        public int drainTo(int[] dst, int max){
+            if(max == 0){
+                return 0;
+            }
+            acquire(sc, takeSpin, false);
+            return take(dst, max);
+        }
+
+        /*
+         * poll method is used to take up to max items into dst without waiting,
+         * 0 is returned when no consumer permit is available
+         */
+        public int poll(int[] dst, int max){
+            if(max == 0 || !sc.tryAcquire()){
+                return 0;
+            }
+            return take(dst, max);
+        }
+
+        /*
+         * take method is used to take items once one consumer permit is acquired
+         */
+        private int take(int[] dst, int max){
+            int permits = 1 + sc.drainPermits();
+            int n = Math.min(max, permits);
+            int e = end;
+            if(e >= 0){
+                n = Math.min(n, e - out);//one of the permits is the close permit
+            }
+            if(permits > n){
+                sc.release(permits - n);//leave the rest of the items for the next call
+            }
+            if(n == 0){
+                return IntChannel.closed(failure);
+            }
+            for(int i = 0; i < n; i++){
+                dst[i] = nums[(out + i) % SIZE];
+            }
+            metrics.take(out, n);
+            out += n;//update index
+            sp.release(n);
+            return n;
+        }
+
+        /*
+         * close method is used by the producer to end the stream
+         * one consumer permit more than there are items is released,
+         * so a consumer waiting on an empty ring buffer wakes up and sees the end
+         */
+        public void close(){
+            if(end >= 0){
+                return;
+            }
+            end = in;
+            sc.release();
+        }
+
+        /*
+         * close method is used by a producer that failed, the consumer takes what is left
+         * and then gets CompletionException with cause instead of CLOSED
+         */
+        public void close(Throwable cause){
+            if(end < 0){
+                failure = cause;
+            }
+            close();
+        }
+
+        private void checkOpen(){
+            if(end >= 0){
+                throw new IllegalStateException("ring buffer is closed");
+            }
+        }
     }//end RingBuffer
 
     /*
@@ -0,0 +1,360 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+/*
+ * MappedRingBuffer class is a single producer single consumer ring buffer
+ * that lives in a memory mapped file, so a producer and a consumer in two different
+ * processes on the same host can share it
+ * file layout:
+ *   0   magic and capacity
+ *   8   closed flag, set by the producer after its last item
+ *   64  tail, next sequence to be written, only changed by the producer
+ *   128 head, next sequence to be read, only changed by the consumer
+ *   192 capacity integer slots
+ * head and tail sit on their own cache lines and are published with release/acquire ordering
+ * because they are stored in the file, items that were put but not taken yet
+ * are still there when the consumer process is restarted
+ */
+public class MappedRingBuffer implements Main.ItemBuffer{
+    private static final int MAGIC = 0x52494E47;//"RING"
+    private static final int CLOSED_OFFSET = 8;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer map;//the mapped file
+    private final int capacity;//number of slots, always a power of two
+    private final int mask;//capacity - 1
+    private final WaitStrategy waitStrategy;//how a side waits for the other one
+    private final WaitStrategy putWait;//the producer side of waitStrategy
+    private final WaitStrategy takeWait;//the consumer side of waitStrategy
+    private volatile Throwable failure;//cause given to close(cause), only known in this process
+    private final ChannelMetrics metrics;//of this process only, latencies need both sides in it
+    private long headCache;//last value of head seen by the producer
+    private long tailCache;//last value of tail seen by the consumer
+
+    /*
+     * MappedRingBuffer constructor is used to map the ring buffer file
+     * a new or empty file is initialized with an empty ring of at least the requested capacity,
+     * an existing ring is reused as it is, the requested capacity is ignored then
+     * the producer process should open the file first
+     * the magic number is stored with release after the rest of the header and read with acquire,
+     * so a process that sees it also sees the capacity and the sequences
+     * Java has no public way to unmap a file: the mapping is released only when the buffer
+     * is garbage collected, close ends the stream but keeps the mapping
+     */
+    public MappedRingBuffer(Path file, int requestedCapacity, WaitStrategy waitStrategy) throws IOException{
+        if(requestedCapacity < 1 || requestedCapacity > (1 << 28)){
+            throw new IllegalArgumentException("capacity: " + requestedCapacity);
+        }
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            int ringCapacity;
+            if(channel.size() >= DATA_OFFSET){
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8).order(ByteOrder.nativeOrder());
+                if((int) INT.getAcquire(header, 0) != MAGIC){
+                    throw new IOException(file + " is not a ring buffer file");
+                }
+                ringCapacity = header.getInt(4);
+            }
+            else{
+                ringCapacity = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+            }
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 4L * ringCapacity);
+            map.order(ByteOrder.nativeOrder());
+            if((int) INT.getAcquire(map, 0) != MAGIC){
+                //new ring, the magic number is released last so a half initialized file is not reused
+                map.putInt(4, ringCapacity);
+                map.putLong(CLOSED_OFFSET, 0L);
+                map.putLong(TAIL_OFFSET, 0L);
+                map.putLong(HEAD_OFFSET, 0L);
+                INT.setRelease(map, 0, MAGIC);
+            }
+            capacity = ringCapacity;
+        }
+        mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+        putWait = waitStrategy.side();
+        takeWait = waitStrategy.side();
+        headCache = (long) LONG.getAcquire(map, HEAD_OFFSET);
+        tailCache = (long) LONG.getAcquire(map, TAIL_OFFSET);
+        metrics = new ChannelMetrics("mapped", capacity);
+    }
+
+    /*
+     * capacity method returns the number of slots in the ring buffer
+     */
+    public int capacity(){
+        return capacity;
+    }
+
+    @Override
+    public ChannelMetrics metrics(){
+        return metrics;
+    }
+
+    /*
+     * force method is used to write the mapped ring to the storage device,
+     * only needed when the items have to survive a crash of the host
+     */
+    public void force(){
+        map.force();
+    }
+
+    /*
+     * putItem method is used by the producer to place an item on the ring buffer
+     * the producer waits while all slots are taken
+     */
+    @Override
+    public void putItem(int num){
+        checkOpen();
+        long t = (long) LONG.getOpaque(map, TAIL_OFFSET);
+        if(t - headCache >= capacity){
+            int counter = 0;
+            ChannelStall stall = null;
+            while(t - (headCache = (long) LONG.getAcquire(map, HEAD_OFFSET)) >= capacity){
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = putWait.pause(counter);
+            }
+            putWait.waited(counter);
+            if(counter > 0){
+                metrics.putBlocked(stall);
+            }
+        }
+        map.putInt(slot(t), num);
+        metrics.put(t, 1);
+        LONG.setRelease(map, TAIL_OFFSET, t + 1);//publish the item
+        waitStrategy.signalAll();
+    }
+
+    /*
+     * takeItem method is used by the consumer to remove an item from the ring buffer
+     * the consumer waits while there is nothing to take
+     * NoSuchElementException is thrown when the ring buffer is closed and empty,
+     * CompletionException when it was closed with a cause
+     */
+    @Override
+    public int takeItem(){
+        long h = (long) LONG.getOpaque(map, HEAD_OFFSET);
+        if(h >= tailCache){
+            int counter = 0;
+            ChannelStall stall = null;
+            while(h >= (tailCache = (long) LONG.getAcquire(map, TAIL_OFFSET))){
+                if(drained(h)){
+                    IntChannel.closed(failure);
+                    throw new NoSuchElementException("ring buffer is closed");
+                }
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = takeWait.pause(counter);
+            }
+            takeWait.waited(counter);
+            if(counter > 0){
+                metrics.takeBlocked(stall);
+            }
+        }
+        int consumed = map.getInt(slot(h));
+        LONG.setRelease(map, HEAD_OFFSET, h + 1);//free the slot
+        metrics.take(h, 1);
+        waitStrategy.signalAll();
+        return consumed;
+    }
+
+    /*
+     * putItems method is used by the producer to place up to len items from src
+     * on the ring buffer with a single release of the tail sequence
+     * the producer waits until at least one slot is free
+     */
+    @Override
+    public int putItems(int[] src, int off, int len){
+        checkOpen();
+        if(len == 0){
+            return 0;
+        }
+        long t = (long) LONG.getOpaque(map, TAIL_OFFSET);
+        long free = capacity - (t - headCache);
+        if(free < len){
+            int counter = 0;
+            ChannelStall stall = null;
+            while((free = capacity - (t - (headCache = (long) LONG.getAcquire(map, HEAD_OFFSET)))) == 0){
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = putWait.pause(counter);
+            }
+            putWait.waited(counter);
+            if(counter > 0){
+                metrics.putBlocked(stall);
+            }
+        }
+        return place(t, free, src, off, len);
+    }
+
+    /*
+     * offer method is used by the producer to place up to len items without waiting,
+     * 0 is returned when the ring buffer is full
+     */
+    @Override
+    public int offer(int[] src, int off, int len){
+        checkOpen();
+        if(len == 0){
+            return 0;
+        }
+        long t = (long) LONG.getOpaque(map, TAIL_OFFSET);
+        long free = capacity - (t - headCache);
+        if(free < len){
+            free = capacity - (t - (headCache = (long) LONG.getAcquire(map, HEAD_OFFSET)));
+            if(free == 0){
+                return 0;
+            }
+        }
+        return place(t, free, src, off, len);
+    }
+
+    /*
+     * place method is used to write up to free items to the slots from sequence t
+     * and publish them with one release of the tail sequence
+     */
+    private int place(long t, long free, int[] src, int off, int len){
+        int n = (int) Math.min(len, free);
+        for(int i = 0; i < n; i++){
+            map.putInt(slot(t + i), src[off + i]);
+        }
+        metrics.put(t, n);
+        LONG.setRelease(map, TAIL_OFFSET, t + n);//publish the whole run
+        waitStrategy.signalAll();
+        return n;
+    }
+
+    /*
+     * drainTo method is used by the consumer to take up to max items into dst
+     * with a single release of the head sequence
+     * the consumer waits until at least one item is available
+     * CLOSED is returned when the ring buffer is closed and empty
+     */
+    @Override
+    public int drainTo(int[] dst, int max){
+        if(max == 0){
+            return 0;
+        }
+        long h = (long) LONG.getOpaque(map, HEAD_OFFSET);
+        long available = tailCache - h;
+        if(available < max){
+            int counter = 0;
+            ChannelStall stall = null;
+            while((available = (tailCache = (long) LONG.getAcquire(map, TAIL_OFFSET)) - h) == 0){
+                if(drained(h)){
+                    return IntChannel.closed(failure);
+                }
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = takeWait.pause(counter);
+            }
+            takeWait.waited(counter);
+            if(counter > 0){
+                metrics.takeBlocked(stall);
+            }
+        }
+        return take(h, available, dst, max);
+    }
+
+    /*
+     * poll method is used by the consumer to take up to max items without waiting,
+     * 0 is returned when the ring buffer is empty and CLOSED when it is closed and empty
+     */
+    @Override
+    public int poll(int[] dst, int max){
+        if(max == 0){
+            return 0;
+        }
+        long h = (long) LONG.getOpaque(map, HEAD_OFFSET);
+        long available = tailCache - h;
+        if(available < max){
+            available = (tailCache = (long) LONG.getAcquire(map, TAIL_OFFSET)) - h;
+            if(available == 0){
+                return drained(h) ? IntChannel.closed(failure) : 0;
+            }
+        }
+        return take(h, available, dst, max);
+    }
+
+    /*
+     * take method is used to read up to available items from sequence h into dst
+     * and free their slots with one release of the head sequence
+     */
+    private int take(long h, long available, int[] dst, int max){
+        int n = (int) Math.min(max, available);
+        for(int i = 0; i < n; i++){
+            dst[i] = map.getInt(slot(h + i));
+        }
+        LONG.setRelease(map, HEAD_OFFSET, h + n);//free the whole run
+        metrics.take(h, n);
+        waitStrategy.signalAll();
+        return n;
+    }
+
+    /*
+     * close method is used by the producer after its last item to end the stream
+     * the flag is stored in the file, so a consumer started later sees it as well
+     */
+    @Override
+    public void close(){
+        LONG.setRelease(map, CLOSED_OFFSET, 1L);
+        waitStrategy.signalAll();
+    }
+
+    /*
+     * close method is used by a producer that failed, a consumer in this process takes
+     * what is left and then gets CompletionException with cause instead of CLOSED
+     * the cause is not stored in the file, a consumer in another process sees a normal close
+     */
+    @Override
+    public void close(Throwable cause){
+        failure = cause;
+        close();
+    }
+
+    /*
+     * reopen method is used by a new producer process to start another stream
+     * on a ring that an earlier producer closed
+     */
+    public void reopen(){
+        failure = null;
+        LONG.setRelease(map, CLOSED_OFFSET, 0L);
+    }
+
+    /*
+     * drained method tells the consumer that every item before the close was taken
+     * the flag is read before tail, so an item put before the close is always seen
+     */
+    private boolean drained(long h){
+        return (long) LONG.getAcquire(map, CLOSED_OFFSET) != 0 && h >= (long) LONG.getAcquire(map, TAIL_OFFSET);
+    }
+
+    private void checkOpen(){
+        if((long) LONG.getAcquire(map, CLOSED_OFFSET) != 0){
+            throw new IllegalStateException("ring buffer is closed");
+        }
+    }
+
+    /*
+     * slot method returns the byte offset of the slot of a sequence
+     */
+    private int slot(long seq){
+        return DATA_OFFSET + 4 * ((int) seq & mask);
+    }
+}//end MappedRingBuffer
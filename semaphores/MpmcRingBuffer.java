@@ -0,0 +1,368 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.NoSuchElementException;
+
+/*
+ * MpmcPad and MpmcTail/MpmcHead classes only hold the shared sequences of MpmcRingBuffer
+ * the unused longs keep the producer and consumer sequences on different cache lines
+ */
+abstract class MpmcPad0{
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class MpmcTail extends MpmcPad0{
+    volatile long tail;//next sequence to be claimed by a producer
+}
+
+abstract class MpmcPad1 extends MpmcTail{
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class MpmcHead extends MpmcPad1{
+    volatile long head;//next sequence to be claimed by a consumer
+}
+
+abstract class MpmcPad2 extends MpmcHead{
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+}
+
+/*
+ * MpmcRingBuffer class is a lock-free ring buffer for any number of producer
+ * and consumer threads
+ * producers claim a slot by a CAS on the tail sequence and consumers by a CAS on the head sequence
+ * every slot has its own sequence stamp that tells whose turn it is:
+ * stamp == seq means the slot is free for the producer of seq,
+ * stamp == seq + 1 means the item of seq is published and can be taken,
+ * the consumer frees the slot for the next lap by setting the stamp to seq + capacity
+ */
+public class MpmcRingBuffer extends MpmcPad2 implements Main.ItemBuffer{
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    private static final VarHandle STAMP = MethodHandles.arrayElementVarHandle(long[].class);
+    static{
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(MpmcHead.class, "head", long.class);
+            TAIL = lookup.findVarHandle(MpmcTail.class, "tail", long.class);
+        }
+        catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int[] nums;//the ring buffer
+    private final long[] stamps;//sequence stamp of every slot
+    private final int capacity;//number of slots, always a power of two
+    private final int mask;//capacity - 1
+    private final WaitStrategy waitStrategy;//how producers and consumers wait
+    private final WaitStrategy putWait;//the producer side of waitStrategy
+    private final WaitStrategy takeWait;//the consumer side of waitStrategy
+    private volatile boolean closed;//set after the last put has returned
+    private volatile Throwable failure;//cause given to close(cause), set before closed
+    private final ChannelMetrics metrics;
+
+    /*
+     * MpmcRingBuffer constructor is used to create a ring buffer
+     * that can hold at least the requested number of items
+     * the capacity is rounded up to the next power of two, and to at least 2:
+     * with one slot the stamp of a published item (seq + 1) is also the stamp
+     * of a free slot for the next lap, so a producer could fill the slot
+     * before the consumer that claimed it copied the item out
+     */
+    public MpmcRingBuffer(int requestedCapacity, WaitStrategy waitStrategy){
+        if(requestedCapacity < 1 || requestedCapacity > (1 << 30)){
+            throw new IllegalArgumentException("capacity: " + requestedCapacity);
+        }
+        capacity = requestedCapacity <= 2 ? 2 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        mask = capacity - 1;
+        nums = new int[capacity];
+        stamps = new long[capacity];
+        for(int i = 0; i < capacity; i++){
+            stamps[i] = i;
+        }
+        this.waitStrategy = waitStrategy;
+        putWait = waitStrategy.side();
+        takeWait = waitStrategy.side();
+        metrics = new ChannelMetrics("mpmc", capacity);
+    }
+
+    /*
+     * capacity method returns the number of slots in the ring buffer
+     */
+    public int capacity(){
+        return capacity;
+    }
+
+    @Override
+    public ChannelMetrics metrics(){
+        return metrics;
+    }
+
+    /*
+     * putItem method is used by a producer to claim the next free slot and publish an item to it
+     * the producer waits while the buffer is full
+     */
+    @Override
+    public void putItem(int num){
+        checkOpen();
+        int counter = 0;
+        ChannelStall stall = null;
+        long seq = tail;
+        while(true){
+            int index = (int) seq & mask;
+            long stamp = (long) STAMP.getAcquire(stamps, index);
+            long diff = stamp - seq;
+            if(diff == 0){
+                //the slot is free, try to claim it
+                if(TAIL.compareAndSet(this, seq, seq + 1)){
+                    nums[index] = num;
+                    metrics.put(seq, 1);
+                    STAMP.setRelease(stamps, index, seq + 1);//publish the item
+                    waitStrategy.signalAll();
+                    putWait.waited(counter);
+                    if(counter > 0){
+                        metrics.putBlocked(stall);
+                    }
+                    return;
+                }
+                seq = tail;//another producer won the slot
+            }
+            else if(diff < 0){
+                //the slot still holds an item from the previous lap, the buffer is full
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = putWait.pause(counter);
+                seq = tail;
+            }
+            else{
+                seq = tail;//another producer claimed seq already
+            }
+        }
+    }
+
+    /*
+     * takeItem method is used by a consumer to claim the next published item and free its slot
+     * the consumer waits while the buffer is empty
+     * NoSuchElementException is thrown when the buffer is closed and empty,
+     * CompletionException when it was closed with a cause
+     */
+    @Override
+    public int takeItem(){
+        int counter = 0;
+        ChannelStall stall = null;
+        long seq = head;
+        while(true){
+            int index = (int) seq & mask;
+            long stamp = (long) STAMP.getAcquire(stamps, index);
+            long diff = stamp - (seq + 1);
+            if(diff == 0){
+                //the item is published, try to claim it
+                if(HEAD.compareAndSet(this, seq, seq + 1)){
+                    int consumed = nums[index];
+                    STAMP.setRelease(stamps, index, seq + capacity);//free the slot for the next lap
+                    metrics.take(seq, 1);
+                    waitStrategy.signalAll();
+                    takeWait.waited(counter);
+                    if(counter > 0){
+                        metrics.takeBlocked(stall);
+                    }
+                    return consumed;
+                }
+                seq = head;//another consumer won the item
+            }
+            else if(diff < 0){
+                //nothing published in this slot yet, the buffer is empty
+                if(drained(seq)){
+                    IntChannel.closed(failure);
+                    throw new NoSuchElementException("ring buffer is closed");
+                }
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = takeWait.pause(counter);
+                seq = head;
+            }
+            else{
+                seq = head;//another consumer took seq already
+            }
+        }
+    }
+
+    /*
+     * putItems method is used by a producer to claim a run of up to len free slots
+     * with a single CAS on the tail sequence and publish src into them
+     * the producer waits until at least one slot is free
+     */
+    @Override
+    public int putItems(int[] src, int off, int len){
+        checkOpen();
+        if(len == 0){
+            return 0;
+        }
+        int counter = 0;
+        ChannelStall stall = null;
+        int n;
+        while((n = tryPlace(src, off, len)) == 0){
+            if(counter == 0){
+                stall = ChannelStall.start();
+            }
+            counter = putWait.pause(counter);//the buffer is full
+        }
+        putWait.waited(counter);
+        if(counter > 0){
+            metrics.putBlocked(stall);
+        }
+        return n;
+    }
+
+    /*
+     * offer method is used by a producer to place up to len items without waiting,
+     * 0 is returned when the buffer is full
+     */
+    @Override
+    public int offer(int[] src, int off, int len){
+        checkOpen();
+        if(len == 0){
+            return 0;
+        }
+        return tryPlace(src, off, len);
+    }
+
+    /*
+     * tryPlace method is used to claim and fill a run of free slots,
+     * a lost CAS is retried, 0 is returned only when the buffer is full
+     */
+    private int tryPlace(int[] src, int off, int len){
+        while(true){
+            long seq = tail;
+            //count the free slots that follow seq
+            int n = 0;
+            while(n < len && n < capacity
+                    && (long) STAMP.getAcquire(stamps, (int) (seq + n) & mask) == seq + n){
+                n++;
+            }
+            if(n == 0){
+                if((long) STAMP.getAcquire(stamps, (int) seq & mask) < seq){
+                    return 0;
+                }
+                continue;//another producer claimed seq already
+            }
+            if(TAIL.compareAndSet(this, seq, seq + n)){
+                metrics.put(seq, n);
+                for(int i = 0; i < n; i++){
+                    int index = (int) (seq + i) & mask;
+                    nums[index] = src[off + i];
+                    STAMP.setRelease(stamps, index, seq + i + 1);//publish the item
+                }
+                waitStrategy.signalAll();
+                return n;
+            }
+        }
+    }
+
+    /*
+     * drainTo method is used by a consumer to claim a run of up to max published items
+     * with a single CAS on the head sequence and copy them into dst
+     * the consumer waits until at least one item is available
+     * CLOSED is returned when the buffer is closed and empty
+     */
+    @Override
+    public int drainTo(int[] dst, int max){
+        if(max == 0){
+            return 0;
+        }
+        int counter = 0;
+        ChannelStall stall = null;
+        int n;
+        while((n = tryTake(dst, max)) == 0){
+            if(counter == 0){
+                stall = ChannelStall.start();
+            }
+            counter = takeWait.pause(counter);//the buffer is empty
+        }
+        takeWait.waited(counter);
+        if(counter > 0){
+            metrics.takeBlocked(stall);
+        }
+        return n;
+    }
+
+    /*
+     * poll method is used by a consumer to take up to max items without waiting,
+     * 0 is returned when the buffer is empty and CLOSED when it is closed and empty
+     */
+    @Override
+    public int poll(int[] dst, int max){
+        if(max == 0){
+            return 0;
+        }
+        return tryTake(dst, max);
+    }
+
+    /*
+     * tryTake method is used to claim and copy a run of published items,
+     * a lost CAS is retried, 0 or CLOSED is returned only when the buffer is empty
+     */
+    private int tryTake(int[] dst, int max){
+        while(true){
+            long seq = head;
+            //count the published items that follow seq
+            int n = 0;
+            while(n < max && n < capacity
+                    && (long) STAMP.getAcquire(stamps, (int) (seq + n) & mask) == seq + n + 1){
+                n++;
+            }
+            if(n == 0){
+                if((long) STAMP.getAcquire(stamps, (int) seq & mask) < seq + 1){
+                    return drained(seq) ? IntChannel.closed(failure) : 0;
+                }
+                continue;//another consumer took seq already
+            }
+            if(HEAD.compareAndSet(this, seq, seq + n)){
+                metrics.take(seq, n);
+                for(int i = 0; i < n; i++){
+                    int index = (int) (seq + i) & mask;
+                    dst[i] = nums[index];
+                    STAMP.setRelease(stamps, index, seq + i + capacity);//free the slot for the next lap
+                }
+                waitStrategy.signalAll();
+                return n;
+            }
+        }
+    }
+
+    /*
+     * close method is used to end the stream once every producer is done
+     * all waiting consumers are woken up, so they see the end without another put
+     */
+    @Override
+    public void close(){
+        closed = true;
+        waitStrategy.signalAll();
+    }
+
+    /*
+     * close method is used when a producer failed, the consumers take what is left
+     * and then get CompletionException with cause instead of CLOSED
+     */
+    @Override
+    public void close(Throwable cause){
+        failure = cause;
+        close();
+    }
+
+    /*
+     * drained method tells a consumer that every slot claimed before the close was taken
+     * a claimed slot that is not published yet still counts, its consumer keeps waiting
+     */
+    private boolean drained(long seq){
+        return closed && seq >= tail;
+    }
+
+    private void checkOpen(){
+        if(closed){
+            throw new IllegalStateException("ring buffer is closed");
+        }
+    }
+}//end MpmcRingBuffer
@@ -0,0 +1,471 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/*
+ * Pipeline class chains a source, a list of stages and a sink
+ * every stage is connected to the next one by a bounded multi-producer multi-consumer
+ * ring buffer and runs as one or more tasks on the executor, so a slow stage
+ * makes the stages before it wait instead of letting the channels grow
+ * a stage with several workers either
+ *   shares its input and output channels between the workers (unordered), or
+ *   gets a splitter task that hands frames of items to the workers in turn over their own
+ *   single producer single consumer rings, and a joiner task that takes the results back
+ *   in the same turn, so the items leave the stage in the order they came in (ordered)
+ * a partition stage sends every item to the worker picked by its key, so items with the
+ * same key stay in order and are always seen by the same worker
+ * the end of the stream moves down the pipeline with close and CLOSED:
+ * a stage closes its output once its input is closed and all its workers are done
+ * an exception thrown by a stage function is kept, the worker drops its items from then on
+ * and the stream still runs to the end, run throws the first exception when it returns
+ *
+ *   Pipeline.from(IntSource.permutation(1000))
+ *       .map(x -> 2 * x, 4, true)
+ *       .filter(x -> x % 3 != 0)
+ *       .run(tasks, System.out::println);
+ */
+public final class Pipeline{
+    private static final int FRAME = 256;//most items handed to a worker at once
+
+    private final IntSource source;
+    private final List<Stage> stages = new ArrayList<>();
+    private int capacity = 1024;//capacity of every channel
+    private WaitStrategy waitStrategy = new WaitStrategy.Parking();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /*
+     * Emitter interface is how a stage function hands its results on
+     */
+    public interface Emitter{
+        void emit(int item);
+    }
+
+    /*
+     * BatchOperator interface is a stage function that works on count items at once
+     * and emits any number of results for them
+     */
+    public interface BatchOperator{
+        void apply(int[] items, int count, Emitter out);
+    }
+
+    private Pipeline(IntSource source){
+        this.source = source;
+    }
+
+    /*
+     * from method starts a pipeline that takes its items from source
+     */
+    public static Pipeline from(IntSource source){
+        return new Pipeline(source);
+    }
+
+    /*
+     * channels method is used to set the capacity and the wait strategy of the channels
+     */
+    public Pipeline channels(int capacity, WaitStrategy waitStrategy){
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    public Pipeline map(IntUnaryOperator f){
+        return map(f, 1, true);
+    }
+
+    /*
+     * map method adds a stage that replaces every item x with f(x)
+     */
+    public Pipeline map(IntUnaryOperator f, int workers, boolean ordered){
+        return add(new Stage((items, count, out) -> {
+            for(int i = 0; i < count; i++){
+                out.emit(f.applyAsInt(items[i]));
+            }
+        }, workers, ordered, FRAME, false, null));
+    }
+
+    public Pipeline filter(IntPredicate p){
+        return filter(p, 1, true);
+    }
+
+    /*
+     * filter method adds a stage that keeps the items x for which p(x) is true
+     */
+    public Pipeline filter(IntPredicate p, int workers, boolean ordered){
+        return add(new Stage((items, count, out) -> {
+            for(int i = 0; i < count; i++){
+                if(p.test(items[i])){
+                    out.emit(items[i]);
+                }
+            }
+        }, workers, ordered, FRAME, false, null));
+    }
+
+    public Pipeline batch(int size, BatchOperator op){
+        return batch(size, op, 1, true);
+    }
+
+    /*
+     * batch method adds a stage that hands the items to op in batches of size items,
+     * only the last batch of a worker may be smaller
+     * an unordered stage with several workers batches the items of every worker on its own
+     */
+    public Pipeline batch(int size, BatchOperator op, int workers, boolean ordered){
+        if(size < 1){
+            throw new IllegalArgumentException("batch size: " + size);
+        }
+        return add(new Stage(op, workers, ordered, size, true, null));
+    }
+
+    /*
+     * partition method adds a stage that hands every item x to worker key(x) modulo workers
+     * op gets the items of one worker in the order they came in, the results of
+     * the workers are merged in the order they are emitted
+     */
+    public Pipeline partition(IntUnaryOperator key, int workers, BatchOperator op){
+        return add(new Stage(op, workers, false, FRAME, false, key));
+    }
+
+    private Pipeline add(Stage stage){
+        if(stage.workers < 1){
+            throw new IllegalArgumentException("workers: " + stage.workers);
+        }
+        stages.add(stage);
+        return this;
+    }
+
+    /*
+     * run method is used to start the source and the stages on executor
+     * and hand every item that comes out of the last stage to sink on the calling thread
+     * it returns when the last item was handed to sink
+     * the executor needs a thread for every task: one for the source, one per worker
+     * and two more per ordered stage with several workers and per partition stage
+     */
+    public void run(Executor executor, IntConsumer sink){
+        MpmcRingBuffer first = channel();
+        executor.execute(() -> produce(first));
+        MpmcRingBuffer in = first;
+        for(Stage stage : stages){
+            MpmcRingBuffer out = channel();
+            stage.start(executor, in, out);
+            in = out;
+        }
+        int[] items = new int[FRAME];
+        int n;
+        while((n = in.drainTo(items, items.length)) != MpmcRingBuffer.CLOSED){
+            for(int i = 0; i < n; i++){
+                sink.accept(items[i]);
+            }
+        }
+        Throwable error = failure.get();
+        if(error != null){
+            throw new CompletionException(error);
+        }
+    }
+
+    private MpmcRingBuffer channel(){
+        return new MpmcRingBuffer(capacity, waitStrategy);
+    }
+
+    private SpscRingBuffer lane(){
+        return new SpscRingBuffer(capacity, waitStrategy);
+    }
+
+    /*
+     * produce method is used by the source task to move the items of the source
+     * into the first channel and close it
+     */
+    private void produce(Main.ItemBuffer out){
+        int[] items = new int[FRAME];
+        try{
+            while(source.hasNext()){
+                int n = 0;
+                while(n < items.length && source.hasNext()){
+                    items[n++] = source.next();
+                }
+                putAll(out, items, n);
+            }
+        }
+        catch(RuntimeException e){
+            failure.compareAndSet(null, e);
+        }
+        finally{
+            source.close();
+        }
+        out.close();
+    }
+
+    /*
+     * putAll method is used to put len items into a channel, waiting for room as needed
+     */
+    private static void putAll(Main.ItemBuffer out, int[] items, int len){
+        int off = 0;
+        while(off < len){
+            off += out.putItems(items, off, len - off);
+        }
+    }
+
+    /*
+     * takeFully method is used to take exactly len items from a channel into items
+     * the items of a frame are always all there, so CLOSED cannot come in the middle of one
+     */
+    private static void takeFully(Main.ItemBuffer in, int[] items, int len, int[] scratch){
+        int off = 0;
+        while(off < len){
+            int n = in.drainTo(scratch, Math.min(scratch.length, len - off));
+            System.arraycopy(scratch, 0, items, off, n);
+            off += n;
+        }
+    }
+
+    /*
+     * Stage class holds the settings of one stage and starts its tasks
+     */
+    private final class Stage{
+        final BatchOperator op;
+        final int workers;
+        final boolean ordered;
+        final int frame;//items per call of op
+        final boolean exact;//op always gets frame items, except at the end
+        final IntUnaryOperator key;//picks the worker of an item, null when not partitioned
+
+        Stage(BatchOperator op, int workers, boolean ordered, int frame, boolean exact, IntUnaryOperator key){
+            this.op = op;
+            this.workers = workers;
+            this.ordered = ordered;
+            this.frame = frame;
+            this.exact = exact;
+            this.key = key;
+        }
+
+        void start(Executor executor, MpmcRingBuffer in, MpmcRingBuffer out){
+            if(key == null && (workers == 1 || !ordered)){
+                //every worker takes from in and puts into out, the last one done closes out
+                AtomicInteger running = new AtomicInteger(workers);
+                for(int w = 0; w < workers; w++){
+                    executor.execute(() -> {
+                        new Worker(this, out).runShared(in);
+                        if(running.decrementAndGet() == 0){
+                            out.close();
+                        }
+                    });
+                }
+                return;
+            }
+            List<SpscRingBuffer> inLanes = new ArrayList<>();
+            List<SpscRingBuffer> outLanes = new ArrayList<>();
+            AtomicInteger running = new AtomicInteger(workers);
+            for(int w = 0; w < workers; w++){
+                SpscRingBuffer inLane = lane();
+                inLanes.add(inLane);
+                if(key == null){
+                    SpscRingBuffer outLane = lane();
+                    outLanes.add(outLane);
+                    executor.execute(() -> new Worker(this, outLane).runFramed(inLane, true));
+                }
+                else{
+                    executor.execute(() -> {
+                        new Worker(this, out).runFramed(inLane, false);
+                        if(running.decrementAndGet() == 0){
+                            out.close();
+                        }
+                    });
+                }
+            }
+            if(key == null){
+                executor.execute(() -> split(in, inLanes));
+                executor.execute(() -> join(outLanes, out));
+            }
+            else{
+                executor.execute(() -> partition(in, inLanes));
+            }
+        }
+
+        /*
+         * split method is used by the splitter task of an ordered stage to hand frames
+         * to the workers in turn, a frame is its length followed by its items
+         */
+        private void split(Main.ItemBuffer in, List<SpscRingBuffer> lanes){
+            int[] items = new int[frame];
+            int[] scratch = new int[frame];
+            int filled = 0;
+            int next = 0;
+            int n;
+            while((n = in.drainTo(scratch, frame - filled)) != MpmcRingBuffer.CLOSED){
+                System.arraycopy(scratch, 0, items, filled, n);
+                filled += n;
+                if(!exact || filled == frame){
+                    sendFrame(lanes.get(next), items, filled);
+                    next = (next + 1) % lanes.size();
+                    filled = 0;
+                }
+            }
+            if(filled > 0){
+                sendFrame(lanes.get(next), items, filled);
+            }
+            lanes.forEach(SpscRingBuffer::close);
+        }
+
+        /*
+         * join method is used by the joiner task of an ordered stage to take the
+         * results of every frame from the workers in the turn the frames were handed out
+         * the workers close their lanes only after their last frame, so the first
+         * closed lane means that every frame was taken
+         */
+        private void join(List<SpscRingBuffer> lanes, Main.ItemBuffer out){
+            int[] items = new int[frame];
+            int[] length = new int[1];
+            int next = 0;
+            while(lanes.get(next).drainTo(length, 1) != SpscRingBuffer.CLOSED){
+                int remaining = length[0];
+                while(remaining > 0){
+                    int n = lanes.get(next).drainTo(items, Math.min(items.length, remaining));
+                    putAll(out, items, n);
+                    remaining -= n;
+                }
+                next = (next + 1) % lanes.size();
+            }
+            out.close();
+        }
+
+        /*
+         * partition method is used by the splitter task of a partition stage
+         * the items of every run taken from in are grouped by worker
+         * and sent as one frame per worker
+         */
+        private void partition(Main.ItemBuffer in, List<SpscRingBuffer> lanes){
+            int[] items = new int[frame];
+            int[][] groups = new int[lanes.size()][frame];
+            int[] sizes = new int[lanes.size()];
+            int n;
+            try{
+                while((n = in.drainTo(items, frame)) != MpmcRingBuffer.CLOSED){
+                    for(int i = 0; i < n; i++){
+                        int w = Math.floorMod(key.applyAsInt(items[i]), lanes.size());
+                        groups[w][sizes[w]++] = items[i];
+                    }
+                    for(int w = 0; w < lanes.size(); w++){
+                        if(sizes[w] > 0){
+                            sendFrame(lanes.get(w), groups[w], sizes[w]);
+                            sizes[w] = 0;
+                        }
+                    }
+                }
+            }
+            catch(RuntimeException e){
+                //a failing key ends the stage early, the rest of the input is dropped
+                failure.compareAndSet(null, e);
+                drop(in);
+            }
+            lanes.forEach(SpscRingBuffer::close);
+        }
+
+        private void sendFrame(Main.ItemBuffer lane, int[] items, int n){
+            lane.putItem(n);
+            putAll(lane, items, n);
+        }
+    }//end Stage
+
+    /*
+     * drop method is used to take and forget everything that is left in a channel,
+     * so the tasks in front of it can finish
+     */
+    private static void drop(Main.ItemBuffer in){
+        int[] items = new int[FRAME];
+        while(in.drainTo(items, items.length) != MpmcRingBuffer.CLOSED){
+            //keep draining
+        }
+    }
+
+    /*
+     * Worker class runs the function of a stage and collects what it emits
+     * once the function threw, the worker keeps taking its input but emits nothing
+     */
+    private final class Worker implements Emitter{
+        private final Stage stage;
+        private final Main.ItemBuffer out;
+        private int[] results = new int[FRAME];
+        private int count;//results emitted for the current call
+        private boolean failed;
+
+        Worker(Stage stage, Main.ItemBuffer out){
+            this.stage = stage;
+            this.out = out;
+        }
+
+        @Override
+        public void emit(int item){
+            if(count == results.length){
+                results = Arrays.copyOf(results, 2 * count);
+            }
+            results[count++] = item;
+        }
+
+        /*
+         * runShared method is used by a worker that takes from a shared channel
+         * an exact stage fills a whole frame before calling the function
+         */
+        void runShared(Main.ItemBuffer in){
+            int[] items = new int[stage.frame];
+            int[] scratch = new int[stage.frame];
+            int filled = 0;
+            int n;
+            while((n = in.drainTo(scratch, stage.frame - filled)) != MpmcRingBuffer.CLOSED){
+                System.arraycopy(scratch, 0, items, filled, n);
+                filled += n;
+                if(!stage.exact || filled == stage.frame){
+                    apply(items, filled);
+                    putAll(out, results, count);
+                    filled = 0;
+                }
+            }
+            if(filled > 0){
+                apply(items, filled);
+                putAll(out, results, count);
+            }
+        }
+
+        /*
+         * runFramed method is used by a worker that takes frames from its own lane
+         * an ordered worker sends every result as a frame, even an empty one,
+         * so the joiner can tell which frame it belongs to
+         */
+        void runFramed(Main.ItemBuffer in, boolean framedOut){
+            int[] items = new int[stage.frame];
+            int[] scratch = new int[stage.frame];
+            int[] length = new int[1];
+            while(in.drainTo(length, 1) != SpscRingBuffer.CLOSED){
+                takeFully(in, items, length[0], scratch);
+                apply(items, length[0]);
+                if(framedOut){
+                    out.putItem(count);
+                }
+                putAll(out, results, count);
+            }
+            if(framedOut){
+                out.close();
+            }
+        }
+
+        private void apply(int[] items, int n){
+            count = 0;
+            if(failed){
+                return;
+            }
+            try{
+                stage.op.apply(items, n, this);
+            }
+            catch(RuntimeException e){
+                failed = true;
+                count = 0;
+                failure.compareAndSet(null, e);
+            }
+        }
+    }//end Worker
+}//end Pipeline
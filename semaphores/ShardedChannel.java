@@ -0,0 +1,249 @@
+import java.util.NoSuchElementException;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+/*
+ * ShardedChannel class splits one stream of items between K ring buffers (shards),
+ * so K consumers can take items in parallel without contending on one head sequence
+ * every item goes to shard partition(item) modulo K, so all the items of one key
+ * land in the same shard and the consumer of that shard sees them in the order
+ * a producer put them
+ * the shards are multi-producer multi-consumer ring buffers: any number of producers
+ * can put items, and with stealing an idle consumer takes items from the other shards
+ * stealing keeps every consumer busy when the keys are skewed, but a stolen item
+ * is taken by another consumer, so the order of a key is only kept without stealing
+ * every shard waits with a strategy of its own, so a blocking strategy does not make
+ * the consumers of different shards wait on one lock
+ * producer() is the ItemSink of the producers, its puts are routed by key,
+ * shard(k) is the ItemDrain of consumer k, its takes come from shard k
+ * (and the others when it is empty and stealing is on)
+ */
+public class ShardedChannel{
+    private final MpmcRingBuffer[] shards;
+    private final IntUnaryOperator partition;
+    private final boolean stealing;
+    private volatile Throwable failure;//cause given to close(cause), set before the shards are closed
+
+    /*
+     * ShardedChannel constructor is used to create shards ring buffers of capacity items each
+     * every shard waits with a new strategy from waitStrategies
+     */
+    public ShardedChannel(int shards, int capacity, IntUnaryOperator partition, Supplier<WaitStrategy> waitStrategies, boolean stealing){
+        if(shards < 1){
+            throw new IllegalArgumentException("shards: " + shards);
+        }
+        this.shards = new MpmcRingBuffer[shards];
+        for(int k = 0; k < shards; k++){
+            this.shards[k] = new MpmcRingBuffer(capacity, waitStrategies.get());
+        }
+        this.partition = partition;
+        this.stealing = stealing;
+    }
+
+    /*
+     * ShardedChannel constructor is used to partition the items by their hash
+     */
+    public ShardedChannel(int shards, int capacity, Supplier<WaitStrategy> waitStrategies, boolean stealing){
+        this(shards, capacity, ShardedChannel::hash, waitStrategies, stealing);
+    }
+
+    /*
+     * hash method spreads the bits of an item, so keys that differ only in their high bits
+     * still go to different shards
+     */
+    static int hash(int item){
+        int h = item * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int shards(){
+        return shards.length;
+    }
+
+    /*
+     * producer method returns the view that producers put items through,
+     * every item goes to the shard of its key
+     */
+    public Main.ItemSink producer(){
+        return new Input();
+    }
+
+    /*
+     * shard method returns the view of the consumer of shard k
+     */
+    public Main.ItemDrain shard(int k){
+        return new Shard(k);
+    }
+
+    /*
+     * shardOf method returns the shard that item goes to
+     */
+    public int shardOf(int item){
+        return Math.floorMod(partition.applyAsInt(item), shards.length);
+    }
+
+    /*
+     * close method is used to close every shard once all producers are done
+     */
+    public void close(){
+        for(MpmcRingBuffer shard : shards){
+            shard.close();
+        }
+    }
+
+    /*
+     * close method is used when a producer failed, the shards are closed normally
+     * and a consumer gets CompletionException with cause instead of CLOSED
+     */
+    public void close(Throwable cause){
+        failure = cause;
+        close();
+    }
+
+    /*
+     * run method returns how many of the len items from src[off] on go to the same shard
+     * as the first one, a producer moves such a run with one putItems or offer
+     */
+    private int run(int[] src, int off, int len, int k){
+        int run = 1;
+        while(run < len && shardOf(src[off + run]) == k){
+            run++;
+        }
+        return run;
+    }
+
+    /*
+     * putItems method is used to put the first run of items that go to one shard,
+     * the number of items put is returned
+     */
+    private int putItems(int[] src, int off, int len){
+        if(len == 0){
+            return 0;
+        }
+        int k = shardOf(src[off]);
+        return shards[k].putItems(src, off, run(src, off, len, k));
+    }
+
+    /*
+     * offer method is used to offer the first run of items that go to one shard
+     */
+    private int offer(int[] src, int off, int len){
+        if(len == 0){
+            return 0;
+        }
+        int k = shardOf(src[off]);
+        return shards[k].offer(src, off, run(src, off, len, k));
+    }
+
+    /*
+     * Input class is the view of the channel that the producers use
+     * close ends the stream of every shard, it is called once all producers are done
+     */
+    private final class Input implements Main.ItemSink{
+        @Override
+        public void putItem(int num){
+            shards[shardOf(num)].putItem(num);
+        }
+
+        @Override
+        public int putItems(int[] src, int off, int len){
+            return ShardedChannel.this.putItems(src, off, len);
+        }
+
+        @Override
+        public int offer(int[] src, int off, int len){
+            return ShardedChannel.this.offer(src, off, len);
+        }
+
+        @Override
+        public void close(){
+            ShardedChannel.this.close();
+        }
+
+        @Override
+        public void close(Throwable cause){
+            ShardedChannel.this.close(cause);
+        }
+    }//end Input
+
+    /*
+     * Shard class is the view of the channel that one consumer uses, it only takes items
+     * with stealing the consumer waits for every shard at once, which the strategy of one shard
+     * cannot signal, so it waits with an Adaptive strategy that parks for short times instead
+     */
+    private final class Shard implements Main.ItemDrain{
+        private final int own;
+        private final int[] one = new int[1];
+        private final WaitStrategy stealWait = new WaitStrategy.Adaptive();//how this consumer waits while stealing
+
+        Shard(int own){
+            this.own = own;
+        }
+
+        @Override
+        public int takeItem(){
+            if(drainTo(one, 1) == IntChannel.CLOSED){
+                throw new NoSuchElementException("channel is closed");
+            }
+            return one[0];
+        }
+
+        /*
+         * drainTo method is used to take up to max items from the own shard
+         * without stealing it waits on the own shard only
+         * with stealing an empty own shard makes the consumer look at the others
+         * and wait only when every shard is empty,
+         * CLOSED is returned once every shard it may take from is closed and empty
+         */
+        @Override
+        public int drainTo(int[] dst, int max){
+            if(!stealing){
+                int n = shards[own].drainTo(dst, max);
+                return n == IntChannel.CLOSED ? IntChannel.closed(failure) : n;
+            }
+            int counter = 0;
+            ChannelStall stall = null;
+            int n;
+            while((n = poll(dst, max)) == 0){
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = stealWait.pause(counter);
+            }
+            stealWait.waited(counter);
+            if(counter > 0){
+                metrics().takeBlocked(stall);
+            }
+            return n;
+        }
+
+        /*
+         * poll method is used to take up to max items without waiting,
+         * the other shards are tried in turn after the own one when stealing is on
+         */
+        @Override
+        public int poll(int[] dst, int max){
+            int n = shards[own].poll(dst, max);
+            if(!stealing || n > 0){
+                return n == IntChannel.CLOSED ? IntChannel.closed(failure) : n;
+            }
+            boolean allClosed = n == IntChannel.CLOSED;
+            for(int i = 1; i < shards.length; i++){
+                n = shards[(own + i) % shards.length].poll(dst, max);
+                if(n > 0){
+                    return n;
+                }
+                allClosed &= n == IntChannel.CLOSED;
+            }
+            return allClosed ? IntChannel.closed(failure) : 0;
+        }
+
+        /*
+         * metrics method returns the counters of the own shard
+         */
+        @Override
+        public ChannelMetrics metrics(){
+            return shards[own].metrics();
+        }
+    }//end Shard
+}//end ShardedChannel
@@ -0,0 +1,339 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.NoSuchElementException;
+
+/*
+ * SpscPad and SpscTail/SpscHead classes only hold the fields of SpscRingBuffer
+ * fields of a superclass are laid out before the fields of a subclass,
+ * so the unused longs keep the producer sequence and the consumer sequence
+ * on different cache lines and the two threads never write to the same line
+ */
+abstract class SpscPad0{
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class SpscTail extends SpscPad0{
+    long tail;//next sequence to be written, only changed by the producer
+    long headCache;//last value of head seen by the producer
+}
+
+abstract class SpscPad1 extends SpscTail{
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class SpscHead extends SpscPad1{
+    long head;//next sequence to be read, only changed by the consumer
+    long tailCache;//last value of tail seen by the consumer
+}
+
+abstract class SpscPad2 extends SpscHead{
+    long p20, p21, p22, p23, p24, p25, p26, p27;
+}
+
+/*
+ * SpscRingBuffer class is a lock-free ring buffer for exactly one producer thread
+ * and one consumer thread
+ * head and tail are ever increasing sequences published with release/acquire ordering,
+ * each side keeps a cached copy of the other side's sequence so the shared
+ * cache line is only read when the buffer looks full or empty
+ * the whole capacity is used and a waiting side follows the given wait strategy,
+ * by default it spins and yields instead of parking in the kernel
+ */
+public class SpscRingBuffer extends SpscPad2 implements Main.ItemBuffer{
+    private static final VarHandle HEAD;
+    private static final VarHandle TAIL;
+    static{
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            HEAD = lookup.findVarHandle(SpscHead.class, "head", long.class);
+            TAIL = lookup.findVarHandle(SpscTail.class, "tail", long.class);
+        }
+        catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int[] nums;//the ring buffer
+    private final int capacity;//number of slots, always a power of two
+    private final int mask;//capacity - 1, replaces the modulo when indexing
+    private final WaitStrategy waitStrategy;//how a side waits for the other one
+    private final WaitStrategy putWait;//the producer side of waitStrategy
+    private final WaitStrategy takeWait;//the consumer side of waitStrategy
+    private volatile boolean closed;//set by the producer after its last item
+    private volatile Throwable failure;//cause given to close(cause), set before closed
+    private final ChannelMetrics metrics;
+
+    /*
+     * SpscRingBuffer constructor is used to create a ring buffer
+     * that can hold at least the requested number of items
+     * the capacity is rounded up to the next power of two
+     */
+    public SpscRingBuffer(int requestedCapacity){
+        this(requestedCapacity, new WaitStrategy.Yielding());
+    }
+
+    /*
+     * SpscRingBuffer constructor is used to create a ring buffer
+     * with a specific wait strategy
+     */
+    public SpscRingBuffer(int requestedCapacity, WaitStrategy waitStrategy){
+        if(requestedCapacity < 1 || requestedCapacity > (1 << 30)){
+            throw new IllegalArgumentException("capacity: " + requestedCapacity);
+        }
+        capacity = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        mask = capacity - 1;
+        nums = new int[capacity];
+        this.waitStrategy = waitStrategy;
+        putWait = waitStrategy.side();
+        takeWait = waitStrategy.side();
+        metrics = new ChannelMetrics("spsc", capacity);
+    }
+
+    /*
+     * capacity method returns the number of slots in the ring buffer
+     */
+    public int capacity(){
+        return capacity;
+    }
+
+    @Override
+    public ChannelMetrics metrics(){
+        return metrics;
+    }
+
+    /*
+     * putItem method is used by the producer to place an item on the ring buffer
+     * the producer waits while all slots are taken
+     */
+    @Override
+    public void putItem(int num){
+        checkOpen();
+        long t = tail;
+        if(t - headCache >= capacity){
+            //looks full, refresh the cached consumer sequence
+            int counter = 0;
+            ChannelStall stall = null;
+            while(t - (headCache = (long) HEAD.getAcquire(this)) >= capacity){
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = putWait.pause(counter);
+            }
+            putWait.waited(counter);
+            if(counter > 0){
+                metrics.putBlocked(stall);
+            }
+        }
+        nums[(int) t & mask] = num;
+        metrics.put(t, 1);
+        TAIL.setRelease(this, t + 1);//publish the item
+        waitStrategy.signalAll();
+    }
+
+    /*
+     * takeItem method is used by the consumer to remove an item from the ring buffer
+     * the consumer waits while there is nothing to take
+     * NoSuchElementException is thrown when the ring buffer is closed and empty,
+     * CompletionException when it was closed with a cause
+     */
+    @Override
+    public int takeItem(){
+        long h = head;
+        if(h >= tailCache){
+            //looks empty, refresh the cached producer sequence
+            int counter = 0;
+            ChannelStall stall = null;
+            while(h >= (tailCache = (long) TAIL.getAcquire(this))){
+                if(drained(h)){
+                    IntChannel.closed(failure);
+                    throw new NoSuchElementException("ring buffer is closed");
+                }
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = takeWait.pause(counter);
+            }
+            takeWait.waited(counter);
+            if(counter > 0){
+                metrics.takeBlocked(stall);
+            }
+        }
+        int consumed = nums[(int) h & mask];
+        HEAD.setRelease(this, h + 1);//free the slot
+        metrics.take(h, 1);
+        waitStrategy.signalAll();
+        return consumed;
+    }
+
+    /*
+     * putItems method is used by the producer to place up to len items from src
+     * on the ring buffer with a single release of the tail sequence
+     * the producer waits until at least one slot is free
+     */
+    @Override
+    public int putItems(int[] src, int off, int len){
+        checkOpen();
+        if(len == 0){
+            return 0;
+        }
+        long t = tail;
+        long free = capacity - (t - headCache);
+        if(free < len){
+            //refresh the cached consumer sequence and wait for at least one slot
+            int counter = 0;
+            ChannelStall stall = null;
+            while((free = capacity - (t - (headCache = (long) HEAD.getAcquire(this)))) == 0){
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = putWait.pause(counter);
+            }
+            putWait.waited(counter);
+            if(counter > 0){
+                metrics.putBlocked(stall);
+            }
+        }
+        return place(t, free, src, off, len);
+    }
+
+    /*
+     * offer method is used by the producer to place up to len items without waiting,
+     * 0 is returned when the ring buffer is full
+     */
+    @Override
+    public int offer(int[] src, int off, int len){
+        checkOpen();
+        if(len == 0){
+            return 0;
+        }
+        long t = tail;
+        long free = capacity - (t - headCache);
+        if(free < len){
+            free = capacity - (t - (headCache = (long) HEAD.getAcquire(this)));
+            if(free == 0){
+                return 0;
+            }
+        }
+        return place(t, free, src, off, len);
+    }
+
+    /*
+     * place method is used to copy up to free items to the slots from sequence t
+     * and publish them with one release of the tail sequence
+     */
+    private int place(long t, long free, int[] src, int off, int len){
+        int n = (int) Math.min(len, free);
+        int index = (int) t & mask;
+        int first = Math.min(n, capacity - index);//items that fit before the end of the array
+        System.arraycopy(src, off, nums, index, first);
+        System.arraycopy(src, off + first, nums, 0, n - first);
+        metrics.put(t, n);
+        TAIL.setRelease(this, t + n);//publish the whole run
+        waitStrategy.signalAll();
+        return n;
+    }
+
+    /*
+     * drainTo method is used by the consumer to take up to max items into dst
+     * with a single release of the head sequence
+     * the consumer waits until at least one item is available
+     * CLOSED is returned when the ring buffer is closed and empty
+     */
+    @Override
+    public int drainTo(int[] dst, int max){
+        if(max == 0){
+            return 0;
+        }
+        long h = head;
+        long available = tailCache - h;
+        if(available < max){
+            //refresh the cached producer sequence and wait for at least one item
+            int counter = 0;
+            ChannelStall stall = null;
+            while((available = (tailCache = (long) TAIL.getAcquire(this)) - h) == 0){
+                if(drained(h)){
+                    return IntChannel.closed(failure);
+                }
+                if(counter == 0){
+                    stall = ChannelStall.start();
+                }
+                counter = takeWait.pause(counter);
+            }
+            takeWait.waited(counter);
+            if(counter > 0){
+                metrics.takeBlocked(stall);
+            }
+        }
+        return take(h, available, dst, max);
+    }
+
+    /*
+     * poll method is used by the consumer to take up to max items without waiting,
+     * 0 is returned when the ring buffer is empty and CLOSED when it is closed and empty
+     */
+    @Override
+    public int poll(int[] dst, int max){
+        if(max == 0){
+            return 0;
+        }
+        long h = head;
+        long available = tailCache - h;
+        if(available < max){
+            available = (tailCache = (long) TAIL.getAcquire(this)) - h;
+            if(available == 0){
+                return drained(h) ? IntChannel.closed(failure) : 0;
+            }
+        }
+        return take(h, available, dst, max);
+    }
+
+    /*
+     * take method is used to copy up to available items from sequence h into dst
+     * and free their slots with one release of the head sequence
+     */
+    private int take(long h, long available, int[] dst, int max){
+        int n = (int) Math.min(max, available);
+        int index = (int) h & mask;
+        int first = Math.min(n, capacity - index);
+        System.arraycopy(nums, index, dst, 0, first);
+        System.arraycopy(nums, 0, dst, first, n - first);
+        HEAD.setRelease(this, h + n);//free the whole run
+        metrics.take(h, n);
+        waitStrategy.signalAll();
+        return n;
+    }
+
+    /*
+     * close method is used by the producer after its last item to end the stream
+     * a waiting consumer is woken up, so it sees the end without another put
+     */
+    @Override
+    public void close(){
+        closed = true;
+        waitStrategy.signalAll();
+    }
+
+    /*
+     * close method is used by a producer that failed, the consumer takes what is left
+     * and then gets CompletionException with cause instead of CLOSED
+     */
+    @Override
+    public void close(Throwable cause){
+        failure = cause;
+        close();
+    }
+
+    /*
+     * drained method tells the consumer that every item before the close was taken
+     * closed is read before tail, so an item put before the close is always seen
+     */
+    private boolean drained(long h){
+        return closed && h >= (long) TAIL.getAcquire(this);
+    }
+
+    private void checkOpen(){
+        if(closed){
+            throw new IllegalStateException("ring buffer is closed");
+        }
+    }
+}//end SpscRingBuffer
@@ -0,0 +1,252 @@
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * WaitStrategy interface describes how a thread waits on a lock-free ring buffer
+ * when it cannot make progress (the buffer is full for a producer or empty for a consumer)
+ * idle is called after every failed attempt with a counter that starts at 0
+ * and returns the counter for the next attempt
+ * signalAll is called after every successful put or take so blocked threads can retry
+ * waited is called with the last counter once the operation can go on,
+ * so a strategy can learn how long the waits are
+ * idle throws InterruptedException when the waiting thread is interrupted,
+ * a channel calls pause instead, which turns it into a CancellationException
+ * and leaves the interrupt flag set, so an interrupted put or take ends instead of retrying
+ * a channel waits with side(), once for its producers and once for its consumers,
+ * so a strategy that learns from the waits keeps one state per side,
+ * and it signals with the strategy itself
+ */
+public interface WaitStrategy{
+    int idle(int counter) throws InterruptedException;
+    void signalAll();
+
+    default void waited(int counter){
+    }
+
+    /*
+     * side method returns the strategy one side of a channel waits with
+     * a strategy that keeps state about the waits returns a new instance,
+     * the others return themselves, so a signal still reaches the waiting side
+     */
+    default WaitStrategy side(){
+        return this;
+    }
+
+    /*
+     * pause method is used by a channel to wait once with idle
+     * CancellationException is thrown when the thread is interrupted, the flag is set again
+     */
+    default int pause(int counter){
+        try{
+            return idle(counter);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while waiting");
+        }
+    }
+
+    /*
+     * of method is used to create a wait strategy from its name
+     * spin, yield, park, adaptive or block
+     */
+    static WaitStrategy of(String name){
+        switch(name){
+            case "spin": return new BusySpin();
+            case "yield": return new Yielding();
+            case "park": return new Parking();
+            case "adaptive": return new Adaptive();
+            case "block": return new Blocking();
+            default: throw new IllegalArgumentException("unknown wait strategy: " + name);
+        }
+    }
+
+    /*
+     * BusySpin strategy never gives up the processor
+     * lowest latency, but it burns a whole core per waiting thread
+     */
+    class BusySpin implements WaitStrategy{
+        @Override
+        public int idle(int counter) throws InterruptedException{
+            checkInterrupt();
+            Thread.onSpinWait();
+            return counter + 1;
+        }
+
+        @Override
+        public void signalAll(){
+        }
+    }//end BusySpin
+
+    /*
+     * Yielding strategy spins for a short while and then yields the processor
+     * to other runnable threads
+     */
+    class Yielding implements WaitStrategy{
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public int idle(int counter) throws InterruptedException{
+            checkInterrupt();
+            if(counter < SPIN_TRIES){
+                Thread.onSpinWait();
+                return counter + 1;
+            }
+            Thread.yield();
+            return counter;
+        }
+
+        @Override
+        public void signalAll(){
+        }
+    }//end Yielding
+
+    /*
+     * Parking strategy spins, then yields, then parks the thread for a short fixed time
+     * the other side never has to wake it up
+     */
+    class Parking implements WaitStrategy{
+        private static final int SPIN_TRIES = 100;
+        private static final int YIELD_TRIES = 200;
+        private static final long PARK_NANOS = 50_000;
+
+        @Override
+        public int idle(int counter) throws InterruptedException{
+            checkInterrupt();//parkNanos returns at once for an interrupted thread
+            if(counter < SPIN_TRIES){
+                Thread.onSpinWait();
+            }
+            else if(counter < YIELD_TRIES){
+                Thread.yield();
+            }
+            else{
+                LockSupport.parkNanos(PARK_NANOS);
+                return counter;
+            }
+            return counter + 1;
+        }
+
+        @Override
+        public void signalAll(){
+        }
+    }//end Parking
+
+    /*
+     * Adaptive strategy spins, yields and then parks for a time that doubles
+     * from MIN_PARK_NANOS up to MAX_PARK_NANOS
+     * the number of spins is the budget of a SpinWait, it follows the recent waits:
+     * short waits make it spin longer, waits that outlast the spinning make it spin less
+     * every side of a channel gets its own budget from side()
+     */
+    class Adaptive implements WaitStrategy{
+        private static final int YIELD_TRIES = 8;
+        private static final long MIN_PARK_NANOS = 1_000;
+        private static final long MAX_PARK_NANOS = 100_000;
+
+        private final SpinWait spin = new SpinWait();
+
+        @Override
+        public int idle(int counter) throws InterruptedException{
+            checkInterrupt();//parkNanos returns at once for an interrupted thread
+            int spins = spin.budget();
+            if(counter < spins){
+                Thread.onSpinWait();
+            }
+            else if(counter < spins + YIELD_TRIES){
+                Thread.yield();
+            }
+            else{
+                int parks = counter - spins - YIELD_TRIES;
+                LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << Math.min(parks, 7)));
+            }
+            return counter + 1;
+        }
+
+        @Override
+        public void waited(int counter){
+            if(counter > 0){
+                spin.record(counter);
+            }
+        }
+
+        /*
+         * side method returns a strategy with a spin budget of its own,
+         * the waits of one side do not change how long the other side spins
+         */
+        @Override
+        public WaitStrategy side(){
+            return new Adaptive();
+        }
+
+        @Override
+        public void signalAll(){
+        }
+    }//end Adaptive
+
+    /*
+     * Blocking strategy waits on a condition until the other side signals progress
+     * every signalAll starts a new generation, a waiting thread remembers the generation
+     * it saw before its last failed attempt and only waits while no signal came since,
+     * so a signal that slips in between the failed attempt and the wait is not lost
+     * the first idle of a wait only takes that snapshot and the caller tries once more
+     * signalAll only takes the lock when a thread is registered as waiting:
+     * the waiter registers before it reads the generation and the signaller counts
+     * the generation before it reads the waiters, so one of them sees the other
+     */
+    class Blocking implements WaitStrategy{
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition progress = lock.newCondition();
+        private final AtomicLong generation = new AtomicLong();//number of signals so far
+        private final ThreadLocal<long[]> seen = ThreadLocal.withInitial(() -> new long[1]);//generation before the last attempt
+        private volatile int waiters;//number of threads waiting on progress
+
+        @Override
+        public int idle(int counter) throws InterruptedException{
+            long[] last = seen.get();
+            if(counter == 0){
+                last[0] = generation.get();//a signal after this makes the next attempt worth it
+                return 1;
+            }
+            lock.lock();
+            try{
+                waiters++;
+                while(generation.get() == last[0]){
+                    progress.await();
+                }
+            }
+            finally{
+                waiters--;
+                lock.unlock();
+            }
+            last[0] = generation.get();
+            return counter + 1;
+        }
+
+        @Override
+        public void signalAll(){
+            generation.incrementAndGet();
+            if(waiters > 0){
+                lock.lock();
+                try{
+                    progress.signalAll();
+                }
+                finally{
+                    lock.unlock();
+                }
+            }
+        }
+    }//end Blocking
+
+    /*
+     * checkInterrupt method is used by the strategies that do not block
+     * to end a wait of an interrupted thread, the flag is cleared like await does
+     */
+    private static void checkInterrupt() throws InterruptedException{
+        if(Thread.interrupted()){
+            throw new InterruptedException();
+        }
+    }
+}//end WaitStrategy
@@ -0,0 +1,132 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+
+/*
+ * Benchmark class measures the throughput and the send-to-receive latency
+ * of the binary socket protocol over loopback
+ * every iteration a producer thread serves one consumer connection on an ephemeral port
+ * and sends items in DATA frames, the consumer decodes them with a FrameReader
+ * over a buffered stream or with a ChannelReader over a SocketChannel
+ * compile together with the common directory and run with key=value parameters, for example
+ *   java Benchmark items=10000000 frame=1024
+ * items: number of items moved per iteration
+ * frame: items per DATA frame
+ * flush: true to flush the producer stream after every frame, false to flush only when the buffer fills
+ * sample: every sample-th item has its latency recorded
+ * reader: stream for a FrameReader, channel for a ChannelReader with a direct buffer
+ * window: items the consumer lets the producer have in flight, at most Protocol.MAX_WINDOW
+ * warmups, iterations: number of unreported and reported runs
+ */
+public class Benchmark{
+
+    public static void main(String[] args) throws Exception{
+        Bench.Params params = new Bench.Params(args);
+        long items = params.getLong("items", 10_000_000);
+        int frame = params.getInt("frame", Protocol.MAX_FRAME_ITEMS);
+        boolean flush = Boolean.parseBoolean(params.get("flush", "false"));
+        int sample = params.getInt("sample", 100);
+        boolean channel = params.get("reader", "stream").equals("channel");
+        int window = params.getInt("window", Protocol.DEFAULT_WINDOW);
+
+        Bench.run("socket loopback", params, () -> trial(items, frame, flush, sample, channel, window));
+    }
+
+    /*
+     * trial method is used to move items from a producer thread to a consumer
+     * over one loopback connection
+     */
+    private static Bench.Result trial(long items, int frame, boolean flush, int sample, boolean channel, int window) throws Exception{
+        Bench.LatencyRecorder recorder = new Bench.LatencyRecorder(items, sample);
+        try(ServerSocket listen = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())){
+            ExecutorService producer = Executors.newSingleThreadExecutor();
+            Future<?> sent = producer.submit(() -> produce(listen, items, frame, flush, recorder));
+            long begin = System.nanoTime();
+            long received = channel ? receiveChannel(listen.getLocalPort(), window, recorder)
+                : receiveStream(listen.getLocalPort(), window, recorder);
+            if(received != items){
+                throw new IOException("received " + received + " of " + items + " items");
+            }
+            long nanos = System.nanoTime() - begin;
+            sent.get();
+            producer.shutdown();
+            return new Bench.Result(items, nanos, recorder.latencies());
+        }
+    }
+
+    /*
+     * receiveStream method is used to receive the items with a FrameReader over a buffered stream
+     */
+    private static long receiveStream(int port, int window, Bench.LatencyRecorder recorder) throws IOException{
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)){
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), Protocol.REQUEST_BYTES));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), Protocol.BUFFER_SIZE));
+            Protocol.FrameReader frames = new Protocol.FrameReader(in, out);
+            frames.open(0, window);
+            int[] dst = new int[Protocol.MAX_FRAME_ITEMS];
+            long received = 0;
+            int n;
+            while((n = frames.read(dst)) >= 0){
+                for(int k = 0; k < n; k++){
+                    recorder.received(received + k);
+                }
+                received += n;
+            }
+            return received;
+        }
+    }
+
+    /*
+     * receiveChannel method is used to receive the items with a ChannelReader over a SocketChannel
+     */
+    private static long receiveChannel(int port, int window, Bench.LatencyRecorder recorder) throws IOException{
+        try(SocketChannel socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))){
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Protocol.ChannelReader reader = new Protocol.ChannelReader(socket);
+            reader.open(0, window);
+            return reader.receive((int[] dst, int n) -> {
+                long first = reader.received() - n;//the batch is counted already
+                for(int k = 0; k < n; k++){
+                    recorder.received(first + k);
+                }
+            });
+        }
+    }
+
+    /*
+     * produce method is used to accept the consumer and send all items to it
+     */
+    private static Void produce(ServerSocket listen, long items, int frame, boolean flush, Bench.LatencyRecorder recorder) throws IOException{
+        try(Socket consumer = listen.accept()){
+            consumer.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(consumer.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(consumer.getOutputStream(), Protocol.BUFFER_SIZE));
+            Protocol.Credit credit = Protocol.readRequest(in);
+            Protocol.writeHeader(out);
+            int[] src = new int[frame];
+            for(long i = 0; i < items; ){
+                while(credit.available() == 0){
+                    out.flush();
+                    credit.readAck(in);
+                }
+                int n = (int) Math.min(Math.min(frame, items - i), credit.available());
+                for(int k = 0; k < n; k++){
+                    src[k] = (int) (i + k);
+                    recorder.sent(i + k);
+                }
+                Protocol.writeData(out, src, 0, n);
+                credit.sent(n);
+                if(flush){
+                    out.flush();
+                }
+                i += n;
+            }
+            Protocol.writeEnd(out);
+            out.flush();
+            Protocol.finish(consumer, in);
+        }
+        return null;
+    }
+}//end Benchmark
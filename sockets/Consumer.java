@@ -1,5 +1,8 @@
 import java.net.*;
 import java.io.*;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.*;
 
 /*
@@ -12,34 +15,39 @@ public class Consumer{
 
     /*
     * main method is used to connect to the producer socket in order to
-    * recieve data from it using DataInputStream
+    * recieve data from it through a SocketChannel with a Protocol.ChannelReader,
+    * which decodes the frames from a reused direct buffer into a reused array
     * recieved data is written to a file consumed.txt and then
     * the content from the file is printed to the screen
+    * an optional second argument is the sequence number of the first wanted item,
+    * so a late consumer can replay a producer log from any offset
+    * with the multi argument followed by host[:port] arguments the items of every
+    * one of those producers are consumed at once, see consumeAll
     */
     public static void main(String args[]){
-        Socket socket = null;
+        if(args.length > 0 && args[0].equals("multi")){
+            consumeAll(Arrays.asList(args).subList(1, args.length));
+            return;
+        }
+        SocketChannel socket = null;
 
         try{
             int producerPort = 3333;
-            socket = new Socket(args[0], producerPort);//initialize socket
-            DataInputStream in = new DataInputStream(socket.getInputStream());//create a DataInputStream for recieving data
-            String data = "";
+            socket = SocketChannel.open(new InetSocketAddress(args[0], producerPort));//initialize socket
+            long start = args.length > 1 ? Long.parseLong(args[1]) : 0;
+            Protocol.ChannelReader reader = new Protocol.ChannelReader(socket);
 
             //recieving numbers from consumer and writing them to a file
             try{
-            PrintWriter write = new PrintWriter("consumed.txt", "UTF-8");// create a writer to a file
-            write.println("Consumed items:");
-            //consume all integers until done is recieved from the server
-            while(true){
-                data = in.readUTF();
-                if(!data.equals("done") ){
-                   write.println(data);
-                }
-                else{
-                    break;
+            AuditLog audit = AuditLog.open("consumed.txt", "Consumed items:");//asynchronous writer to a file
+            reader.open(start, Protocol.DEFAULT_WINDOW);//send the request and check the header
+            //consume all frames until the end frame is recieved from the server
+            reader.receive((int[] items, int count) -> {
+                for(int i = 0; i < count; i++){
+                    audit.log(items[i]);
                 }
-            }
-            write.close();//close PrintWriter
+            });
+            audit.close();//close the audit log
             
 
             readFile();//read integers from a file
@@ -71,6 +79,46 @@ public class Consumer{
         }
     }//end main
 
+    /*
+    * consumeAll method is used to consume the items of several producers with a ConsumerClient,
+    * a producer whose connection drops is connected again and resumed where it stopped
+    * the merged items are written to consumed.txt in the order they arrive
+    * the producers are read by tasks on the executor chosen with -Dtasks
+    */
+    private static void consumeAll(List<String> endpoints){
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for(String endpoint : endpoints){
+            int colon = endpoint.lastIndexOf(':');
+            addresses.add(colon < 0 ? new InetSocketAddress(endpoint, 3333)
+                : new InetSocketAddress(endpoint.substring(0, colon), Integer.parseInt(endpoint.substring(colon + 1))));
+        }
+        ConsumerClient client = new ConsumerClient(addresses, Protocol.MAX_FRAME_ITEMS * addresses.size());
+        MergedChannel channel = client.channel();
+        channel.metrics().register();
+        ScheduledFuture<?> printing = ChannelMetrics.printEvery();//only with -Dmetrics=millis
+        ExecutorService tasks = Tasks.open();
+        client.start(tasks);
+        try(AuditLog audit = AuditLog.open("consumed.txt", "Consumed items:")){
+            int[] items = new int[Protocol.MAX_FRAME_ITEMS];
+            int count;
+            while((count = channel.drainTo(items, items.length)) != IntChannel.CLOSED){
+                for(int i = 0; i < count; i++){
+                    audit.log(items[i]);
+                }
+            }
+        }
+        catch(IOException e){
+            System.out.println("writer: " + e.getMessage());
+        }
+        Tasks.close(tasks);
+        ChannelMetrics.stopPrinting(printing);
+        channel.metrics().unregister();
+        for(int i = 0; i < addresses.size(); i++){
+            System.out.println(addresses.get(i) + ": " + client.received(i) + " items"
+                + (client.complete(i) ? "" : ", incomplete"));
+        }
+    }//end consumeAll
+
     /*
     *readFile method is used to read all content from a file created
     * by a consumer (consumed.txt)
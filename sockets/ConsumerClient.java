@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+* ConsumerClient class is a consumer that holds a connection to every one of several producers
+* and merges their streams onto one MergedChannel
+* every producer is read by its own task, so a slow producer does not hold up the others
+* a task counts the items it put on the channel, that count is the sequence number
+* of the next item it wants from its producer
+* when a connection drops the task connects again after a backoff and asks for
+* the items from that sequence number on, so an item is neither lost nor received twice
+* the backoff starts at -Dreconnect.millis (default 100), doubles up to 50 times that
+* and is jittered, so consumers of a restarted producer do not all come back at once
+* a producer is given up after -Dreconnect.tries (default 10) failed connections in a row
+* resuming needs a producer that serves the same items for the same sequence numbers,
+* like the replay server
+*/
+class ConsumerClient{
+    private static final long BACKOFF_MILLIS = Long.getLong("reconnect.millis", 100);
+    private static final long MAX_BACKOFF_MILLIS = 50 * BACKOFF_MILLIS;
+    private static final int TRIES = Integer.getInteger("reconnect.tries", 10);
+
+    private final Endpoint[] endpoints;
+    private final MergedChannel channel;
+
+    /*
+    * ConsumerClient constructor is used to create a client for the producers at addresses
+    * whose items are merged onto a channel of capacity items
+    * nothing is connected before start
+    */
+    ConsumerClient(List<InetSocketAddress> addresses, int capacity){
+        endpoints = new Endpoint[addresses.size()];
+        channel = new MergedChannel(capacity, endpoints.length);
+        for(int i = 0; i < endpoints.length; i++){
+            endpoints[i] = new Endpoint(addresses.get(i));
+        }
+    }
+
+    /*
+    * start method is used to connect to every producer, each one is read by a task on tasks
+    */
+    void start(Executor tasks){
+        for(Endpoint endpoint : endpoints){
+            tasks.execute(endpoint);
+        }
+    }
+
+    /*
+    * channel method returns the channel the items of all producers are merged onto,
+    * it is closed after every producer sent its END frame or was given up
+    */
+    MergedChannel channel(){
+        return channel;
+    }
+
+    /*
+    * received method returns the number of items put on the channel from the i-th producer
+    */
+    long received(int i){
+        return endpoints[i].next;
+    }
+
+    /*
+    * complete method returns true when the i-th producer sent its END frame,
+    * false while it is read and after it was given up
+    */
+    boolean complete(int i){
+        return endpoints[i].complete;
+    }
+
+    /*
+    * Endpoint class is the task that reads one producer
+    * and reconnects to it until its END frame is received
+    */
+    private class Endpoint implements Runnable{
+        private final InetSocketAddress address;
+        private volatile long next;//sequence number of the next wanted item
+        private volatile boolean complete;//true after the END frame
+
+        Endpoint(InetSocketAddress address){
+            this.address = address;
+        }
+
+        /*
+        * run method is used to connect, put every received batch on the channel
+        * and connect again from the next sequence number when the connection fails
+        * the tries and the backoff start over after a connection that received items
+        */
+        @Override
+        public void run(){
+            long backoff = BACKOFF_MILLIS;
+            int failures = 0;
+            try{
+                while(true){
+                    long from = next;
+                    try(SocketChannel socket = SocketChannel.open(address)){
+                        Protocol.ChannelReader reader = new Protocol.ChannelReader(socket);
+                        reader.open(from, Protocol.DEFAULT_WINDOW);
+                        reader.receive((int[] items, int count) -> {
+                            channel.put(items, 0, count);
+                            next += count;//only this task writes next
+                        });
+                        complete = true;
+                        return;
+                    }
+                    catch(IOException e){
+                        if(next > from){
+                            backoff = BACKOFF_MILLIS;
+                            failures = 0;
+                        }
+                        if(++failures >= TRIES){
+                            System.out.println(address + ": giving up after " + failures + " tries, " + e.getMessage());
+                            return;
+                        }
+                        long sleep = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                        System.out.println(address + ": " + e.getMessage() + ", reconnecting from item " + next + " in " + sleep + " ms");
+                        Thread.sleep(sleep);
+                        backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+                    }
+                }
+            }
+            catch(InterruptedException e){
+                Thread.currentThread().interrupt();//stop reading this producer
+            }
+            finally{
+                channel.writerDone();
+            }
+        }
+    }//end Endpoint
+}//end ConsumerClient
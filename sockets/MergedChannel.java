@@ -0,0 +1,248 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* MergedChannel class is a bounded channel of integers that several writers fill at once,
+* it is where a ConsumerClient merges the streams of its producers
+* every writer calls writerDone when its stream is over,
+* the channel is closed after the last writer is done: the consumer takes what is left
+* and then gets CLOSED from drainTo
+* the channel blocks with a ReentrantLock, so a waiting virtual thread does not hold its carrier
+* like the pipe it counts its waiters and signals only when the channel goes from empty
+* to non-empty or from full to non-full and someone waits for that
+*/
+class MergedChannel implements IntChannel{
+    private final int[] items;//items that are currently in the channel
+    private int count;//number of items in the channel
+    private int out;//index of the next item to take
+    private long placed;//items put since the channel was created, the sequence number of the next item
+    private int writers;//writers that are not done yet
+    private boolean closed;//true after the last writer is done or after close
+    private Throwable failure;//cause given to close(cause)
+    private final ReentrantLock lock = new ReentrantLock();//guards the items
+    private final Condition notFull = lock.newCondition();//writers wait here while the channel is full
+    private final Condition notEmpty = lock.newCondition();//the consumer waits here while the channel is empty
+    private int putWaiters;//number of writers waiting on notFull
+    private int takeWaiters;//number of consumers waiting on notEmpty
+    private final ChannelMetrics metrics;
+
+    /*
+    * MergedChannel constructor is used to create a channel of capacity items
+    * that is closed once writers writers are done
+    */
+    MergedChannel(int capacity, int writers){
+        items = new int[capacity];
+        this.writers = writers;
+        metrics = new ChannelMetrics("merged", capacity);
+    }
+
+    /*
+    * put method is used to add all len items from src, waiting for room as often as needed
+    * IllegalStateException is thrown when the channel is closed
+    */
+    void put(int[] src, int off, int len){
+        while(len > 0){
+            lock.lock();
+            try{
+                if(count == items.length && !closed){
+                    ChannelStall stall = ChannelStall.start();
+                    putWaiters++;
+                    while(count == items.length && !closed){
+                        notFull.awaitUninterruptibly();
+                    }
+                    putWaiters--;
+                    metrics.putBlocked(stall);
+                }
+                checkOpen();
+                int n = place(src, off, len);
+                off += n;
+                len -= n;
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+    * drainTo method is used to take up to max items into dst, waiting for at least one item
+    * the number of items taken is returned, or CLOSED when the channel is closed and empty
+    */
+    int drainTo(int[] dst, int max){
+        lock.lock();
+        try{
+            if(count == 0 && !closed){
+                ChannelStall stall = ChannelStall.start();
+                takeWaiters++;
+                while(count == 0 && !closed){
+                    notEmpty.awaitUninterruptibly();
+                }
+                takeWaiters--;
+                metrics.takeBlocked(stall);
+            }
+            if(count == 0){
+                return IntChannel.closed(failure);
+            }
+            return max == 0 ? 0 : take(dst, max);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * offer method is used to add up to len items from src without waiting for room,
+    * 0 is returned when the channel is full
+    */
+    @Override
+    public int offer(int[] src, int off, int len){
+        lock.lock();
+        try{
+            checkOpen();
+            return len == 0 || count == items.length ? 0 : place(src, off, len);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * poll method is used to take up to max items into dst without waiting for an item,
+    * 0 is returned when the channel is empty and CLOSED when it is closed and empty
+    */
+    @Override
+    public int poll(int[] dst, int max){
+        lock.lock();
+        try{
+            if(count == 0){
+                return closed ? IntChannel.closed(failure) : 0;
+            }
+            return max == 0 ? 0 : take(dst, max);
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * writerDone method is used by a writer after its last item,
+    * the channel is closed when it was the last writer
+    */
+    void writerDone(){
+        lock.lock();
+        try{
+            if(--writers == 0){
+                close();
+            }
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * close method is used to end the stream whatever the writers do,
+    * a writer that puts after it gets IllegalStateException
+    */
+    @Override
+    public void close(){
+        lock.lock();
+        try{
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    /*
+    * close method is used to end the stream because of cause, the consumer takes what is left
+    * and then gets CompletionException instead of CLOSED
+    */
+    @Override
+    public void close(Throwable cause){
+        lock.lock();
+        try{
+            failure = cause;
+            close();
+        }
+        finally{
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ChannelMetrics metrics(){
+        return metrics;
+    }
+
+    /*
+    * place method is used to copy up to len items into the free room of the channel
+    * must be called while holding the lock, with room for at least one item
+    */
+    private int place(int[] src, int off, int len){
+        boolean wasEmpty = count == 0;
+        int n = Math.min(len, items.length - count);
+        for(int i = 0; i < n; i++){
+            items[(out + count + i) % items.length] = src[off + i];
+        }
+        metrics.put(placed, n);
+        placed += n;
+        count += n;
+        signalAfterPlace(wasEmpty);
+        return n;
+    }
+
+    /*
+    * take method is used to copy up to max items out of the channel
+    * must be called while holding the lock, with at least one item in the channel
+    */
+    private int take(int[] dst, int max){
+        boolean wasFull = count == items.length;
+        int n = Math.min(max, count);
+        for(int i = 0; i < n; i++){
+            dst[i] = items[(out + i) % items.length];
+        }
+        metrics.take(placed - count, n);
+        out = (out + n) % items.length;
+        count -= n;
+        signalAfterTake(wasFull);
+        return n;
+    }
+
+    /*
+    * signalAfterPlace method wakes one consumer when the channel went from empty to non-empty
+    * and passes the turn to another writer if there is still room left
+    * nothing is signalled when nobody waits
+    */
+    private void signalAfterPlace(boolean wasEmpty){
+        if(wasEmpty && takeWaiters > 0){
+            notEmpty.signal();
+        }
+        if(putWaiters > 0 && count < items.length){
+            notFull.signal();
+        }
+    }
+
+    /*
+    * signalAfterTake method wakes one writer when the channel went from full to non-full
+    * and passes the turn to another consumer if there are still items left
+    * nothing is signalled when nobody waits
+    */
+    private void signalAfterTake(boolean wasFull){
+        if(wasFull && putWaiters > 0){
+            notFull.signal();
+        }
+        if(takeWaiters > 0 && count > 0){
+            notEmpty.signal();
+        }
+    }
+
+    private void checkOpen(){
+        if(closed){
+            throw new IllegalStateException("channel is closed");
+        }
+    }
+}//end MergedChannel
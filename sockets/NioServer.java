@@ -0,0 +1,480 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+* NioServer class is a non-blocking producer server
+* one selector thread accepts any number of consumers and sends every consumer
+* its own 100 randomly shuffled integers using the binary protocol
+* a consumer is first read from until its request is complete, then it is written to,
+* a consumer whose request is not complete REQUEST_TIMEOUT after it connected is closed
+* every consumer has its own queue of direct byte buffers, when the socket send buffer
+* is full the server stops writing to that consumer and waits for write interest
+* instead of blocking, so one slow consumer never holds up the others
+* no more items are encoded than the credit of the consumer allows, without credit
+* the server waits for read interest, the acks of the consumer come in as it reads
+* after the end frame the output is shut down and the consumer is read from until it closes,
+* a consumer that is still open Protocol.LINGER_MILLIS later is closed by the server
+* the server stops when no consumer is connected and nobody connects for 10 seconds
+*/
+class NioServer{
+    private static final long IDLE_TIMEOUT = 10000;//ms without consumers before the server stops
+    private static final long REQUEST_TIMEOUT = 10000;//ms a consumer has to send its whole request
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;//size of one queued direct buffer
+    private static final int MAX_QUEUED_BUFFERS = 4;//buffers encoded ahead for one consumer
+
+    private final Selector selector;
+    private final ServerSocketChannel listen;//producer socket
+    private int sessions;//number of connected consumers
+    private int nextId;//id of the next consumer, used to name its produced file
+    private final ArrayDeque<SelectionKey> accepted = new ArrayDeque<>();//consumers waited on for a request, oldest first
+    private final ArrayDeque<SelectionKey> finished = new ArrayDeque<>();//finished consumers, oldest first
+
+    /*
+    * NioServer constructor is used to open a non-blocking server socket on the given port
+    */
+    NioServer(int port) throws IOException{
+        selector = Selector.open();
+        listen = ServerSocketChannel.open();
+        listen.configureBlocking(false);
+        listen.bind(new InetSocketAddress(port));
+        listen.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /*
+    * run method is the selector loop, it accepts new consumers and
+    * writes to every consumer whose socket can take more data
+    * the select wakes up in time to close the oldest consumer whose request is late
+    * and the oldest finished consumer that lingers
+    */
+    void run() throws IOException{
+        try{
+            while(true){
+                if(selector.select(selectTimeout()) == 0 && sessions == 0){
+                    break;//nobody connected in time
+                }
+                closeExpired();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()){
+                        continue;
+                    }
+                    if(key.isAcceptable()){
+                        accept();
+                        continue;
+                    }
+                    if(key.isReadable()){
+                        read(key);
+                    }
+                    if(key.isValid() && key.isWritable()){
+                        write(key);
+                    }
+                }
+            }
+        }
+        finally{
+            listen.close();
+            selector.close();
+        }
+    }
+
+    /*
+    * selectTimeout method returns how long the next select may wait,
+    * IDLE_TIMEOUT or less when a late request or a finished consumer must be closed sooner
+    */
+    private long selectTimeout(){
+        long timeout = IDLE_TIMEOUT;
+        SelectionKey oldest = accepted.peek();
+        if(oldest != null){
+            timeout = Math.min(timeout, millisUntil(((Session) oldest.attachment()).requestDeadline()));
+        }
+        oldest = finished.peek();
+        if(oldest != null){
+            timeout = Math.min(timeout, millisUntil(((Session) oldest.attachment()).lingerDeadline()));
+        }
+        return timeout;
+    }
+
+    private static long millisUntil(long deadline){
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1);
+    }
+
+    /*
+    * closeExpired method is used to close the consumers that did not send their request
+    * within REQUEST_TIMEOUT and the finished consumers that did not close
+    * within Protocol.LINGER_MILLIS, every consumer waits as long, so the oldest come first
+    * consumers that sent their request or closed on their own are only dropped from the queue
+    */
+    private void closeExpired(){
+        long now = System.nanoTime();
+        SelectionKey oldest;
+        while((oldest = accepted.peek()) != null){
+            Session session = (Session) oldest.attachment();
+            if(oldest.isValid() && !session.requested()){
+                if(session.requestDeadline() - now > 0){
+                    break;
+                }
+                System.out.println("Connection: no request within " + REQUEST_TIMEOUT + " ms");
+                session.close();
+                close(oldest);
+            }
+            accepted.poll();
+        }
+        while((oldest = finished.peek()) != null
+                && (!oldest.isValid() || ((Session) oldest.attachment()).lingerDeadline() - now <= 0)){
+            finished.poll();
+            if(oldest.isValid()){
+                close(oldest);
+            }
+        }
+    }
+
+    /*
+    * accept method is used to accept every pending consumer
+    * and wait for its request
+    * a consumer that cannot be set up is closed, the server goes on with the others
+    */
+    private void accept() throws IOException{
+        SocketChannel channel;
+        while((channel = listen.accept()) != null){
+            Session session = null;
+            try{
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                session = new Session(nextId++);
+                accepted.add(channel.register(selector, SelectionKey.OP_READ, session));
+                sessions++;
+            }
+            catch(IOException e){
+                System.out.println("Connection: " + e.getMessage());
+                if(session != null){
+                    session.close();
+                }
+                try{
+                    channel.close();
+                }
+                catch(IOException ce){
+                    System.out.println("close failed: " + ce.getMessage());
+                }
+            }
+        }
+    }
+
+    /*
+    * read method is used to read the request of a consumer and then its acks
+    * sending starts as soon as the whole request is read and goes on when an ack
+    * grants more credit while the server is not waiting for write interest
+    * the consumer is dropped when it closes
+    */
+    private void read(SelectionKey key){
+        SocketChannel channel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        try{
+            if(!session.requested()){
+                if(session.readRequest(channel)){
+                    write(key);
+                }
+            }
+            else if(!session.readAcks(channel)){
+                session.close();
+                close(key);
+            }
+            else if(!session.finished() && (key.interestOps() & SelectionKey.OP_WRITE) == 0){
+                write(key);
+            }
+        }
+        catch(IOException e){
+            System.out.println("Connection: " + e.getMessage());
+            session.close();
+            close(key);
+        }
+    }
+
+    /*
+    * write method is used to send the queued buffers of one consumer
+    * write interest is kept only while the socket cannot take everything,
+    * read interest is kept all the time for the acks
+    * once the end frame is written the session is finished
+    */
+    private void write(SelectionKey key){
+        SocketChannel channel = (SocketChannel) key.channel();
+        Session session = (Session) key.attachment();
+        session.writable();
+        try{
+            if(session.flush(channel)){
+                session.finish(channel);
+                session.close();
+                key.interestOps(SelectionKey.OP_READ);//wait until the consumer closes
+                finished.add(key);
+            }
+            else if(session.waitingForCredit()){
+                session.outOfCredit();
+                key.interestOps(SelectionKey.OP_READ);//wait for an ack
+            }
+            else{
+                session.full();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);//wait until the socket drains
+            }
+        }
+        catch(IOException e){
+            System.out.println("Connection: " + e.getMessage());
+            session.close();
+            close(key);
+        }
+    }
+
+    /*
+    * close method is used to drop a consumer
+    */
+    private void close(SelectionKey key){
+        key.cancel();
+        sessions--;
+        try{
+            key.channel().close();//close consumer socket
+        }
+        catch(IOException e){
+            System.out.println("close failed: " + e.getMessage());
+        }
+    }
+
+    /*
+    * Session class holds the state of one consumer:
+    * the source of its integers, the integers taken but not yet encoded, its write queue
+    * and its credit
+    * all items sent to the consumer are stored in a file called produced-<id>.txt
+    */
+    private static class Session{
+        private final IntSource source = IntSource.permutation(100);//the integers for this consumer
+        private final int[] staged = new int[Protocol.MAX_FRAME_ITEMS];//integers taken from the source
+        private int stagedStart;//first staged integer that is not encoded yet
+        private int stagedEnd;//number of staged integers
+        private final ByteBuffer request = ByteBuffer.allocate(Protocol.REQUEST_BYTES);//request of the consumer
+        private final ByteBuffer acks = ByteBuffer.allocate(Protocol.ACK_BYTES * 16);//acks of the consumer
+        private Protocol.Credit credit;//set once the request is read
+        private boolean finished;//true after the whole stream is written and the output is shut down
+        private final long requestDeadline;//System.nanoTime when a session without a request is closed by the server
+        private long lingerDeadline;//System.nanoTime when a finished session is closed by the server
+        private boolean headerSent;//true after the stream header is encoded
+        private boolean endSent;//true after the end frame is encoded
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();//buffers ready to be written
+        private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();//written buffers for reuse
+        private AuditLog audit;//asynchronous writer to the produced file
+        private final String name;//name of the session in ChannelStall events
+        private ChannelStall stall;//started when the session stopped sending, null while it sends
+        private String stalledOn;//the ChannelStall operation of the current stall
+
+        Session(int id) throws IOException{
+            audit = AuditLog.open("produced-" + id + ".txt", "Produced items:");
+            name = "session-" + id;
+            requestDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT);
+        }
+
+        /*
+        * full method is used when the socket send buffer is full, a write stall starts
+        */
+        void full(){
+            stall("write");
+        }
+
+        /*
+        * outOfCredit method is used when the consumer has to ack before more is sent,
+        * a credit stall starts, it is not a write stall since the socket could take data
+        */
+        void outOfCredit(){
+            stall("credit");
+        }
+
+        private void stall(String operation){
+            if(stall == null){
+                stall = ChannelStall.start();
+                stalledOn = operation;
+            }
+        }
+
+        /*
+        * writable method is used when the session may send again,
+        * a stall that lasted long enough is recorded as a ChannelStall event
+        */
+        void writable(){
+            if(stall != null){
+                stall.finish(name, stalledOn);
+                stall = null;
+            }
+        }
+
+        /*
+        * readRequest method is used to read the request of the consumer
+        * true is returned once it is complete, the items before the requested start are skipped
+        */
+        boolean readRequest(SocketChannel channel) throws IOException{
+            if(channel.read(request) < 0){
+                throw new EOFException("consumer closed before sending a request");
+            }
+            if(request.hasRemaining()){
+                return false;
+            }
+            request.flip();
+            credit = Protocol.getRequest(request);
+            source.skip(credit.start());
+            return true;
+        }
+
+        /*
+        * requested method returns true once the whole request is read
+        */
+        boolean requested(){
+            return credit != null;
+        }
+
+        /*
+        * readAcks method is used to read the acks that arrived and add their credit,
+        * acks after the end of the stream are dropped
+        * false is returned when the consumer closed
+        */
+        boolean readAcks(SocketChannel channel) throws IOException{
+            int read = channel.read(acks);
+            acks.flip();
+            while(acks.remaining() >= Protocol.ACK_BYTES){
+                if(finished){
+                    acks.position(acks.position() + Protocol.ACK_BYTES);
+                }
+                else{
+                    credit.getAck(acks);
+                }
+            }
+            acks.compact();
+            return read >= 0;
+        }
+
+        /*
+        * waitingForCredit method returns true when nothing can be written until an ack comes
+        */
+        boolean waitingForCredit(){
+            return writeQueue.isEmpty() && !endSent;
+        }
+
+        /*
+        * finish method is used to shut the output down after the end frame is written
+        */
+        void finish(SocketChannel channel) throws IOException{
+            channel.shutdownOutput();
+            finished = true;
+            lingerDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Protocol.LINGER_MILLIS);
+        }
+
+        /*
+        * requestDeadline method returns when the session is closed at the latest
+        * if its request is not complete by then
+        */
+        long requestDeadline(){
+            return requestDeadline;
+        }
+
+        /*
+        * lingerDeadline method returns when the finished session is closed at the latest
+        */
+        long lingerDeadline(){
+            return lingerDeadline;
+        }
+
+        /*
+        * finished method returns true after finish
+        */
+        boolean finished(){
+            return finished;
+        }
+
+        /*
+        * flush method is used to write as much of the queue as the socket takes
+        * the queue is refilled from the source as buffers are written
+        * true is returned when the whole stream including the end frame was written,
+        * false when the socket is full or the credit is used up
+        */
+        boolean flush(SocketChannel channel) throws IOException{
+            while(true){
+                fill();
+                ByteBuffer buf = writeQueue.peek();
+                if(buf == null){
+                    return endSent;//false while waiting for credit
+                }
+                channel.write(buf);
+                if(buf.hasRemaining()){
+                    return false;//socket send buffer is full
+                }
+                writeQueue.poll();
+                buf.clear();
+                freeBuffers.push(buf);
+            }
+        }
+
+        /*
+        * fill method is used to encode the next frames into free buffers
+        * until MAX_QUEUED_BUFFERS are queued, the end frame is encoded
+        * or the credit of the consumer is used up
+        */
+        private void fill(){
+            while(!endSent && writeQueue.size() < MAX_QUEUED_BUFFERS){
+                ByteBuffer buf = freeBuffers.isEmpty() ? ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE) : freeBuffers.pop();
+                if(!headerSent){
+                    Protocol.putHeader(buf);
+                    headerSent = true;
+                }
+                int n;
+                while(stage()
+                        && (n = Protocol.putData(buf, staged, stagedStart, Math.min(stagedEnd - stagedStart, credit.available()))) > 0){
+                    for(int i = stagedStart; i < stagedStart + n; i++){
+                        audit.log(staged[i]);
+                    }
+                    stagedStart += n;
+                    credit.sent(n);
+                }
+                if(stagedStart == stagedEnd && !source.hasNext()){
+                    endSent = Protocol.putEnd(buf);
+                }
+                if(buf.position() == 0){
+                    freeBuffers.push(buf);//no credit left
+                    return;
+                }
+                buf.flip();
+                writeQueue.add(buf);
+            }
+        }
+
+        /*
+        * stage method is used to take the next integers from the source
+        * when every staged integer is encoded
+        * true is returned when there are integers left to encode
+        */
+        private boolean stage(){
+            if(stagedStart == stagedEnd){
+                stagedStart = 0;
+                stagedEnd = 0;
+                while(stagedEnd < staged.length && source.hasNext()){
+                    staged[stagedEnd++] = source.next();
+                }
+            }
+            return stagedStart < stagedEnd;
+        }
+
+        /*
+        * close method is used to close the source and the produced file
+        */
+        void close(){
+            source.close();
+            if(audit != null){
+                try{
+                    audit.close();
+                }
+                catch(IOException e){
+                    System.out.println("writer: " + e.getMessage());
+                }
+                audit = null;
+            }
+        }
+    }//end Session
+}//end NioServer
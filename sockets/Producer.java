@@ -1,12 +1,15 @@
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
 // Code base is used from the reference provided on Pilot
 
 /*
 * Producer class is used to create a producer object
 * that used to create a socket connection over TCP and transfer 
-* 100 randomly generated data
+* the integers from 0 to 99 in a random order
 * Producer class is the implementation of a server socket if we talk about it in 
 * server-client relationship
 */
@@ -14,14 +17,50 @@ public class Producer{
     /*
     * main function is used to create a server socket with all needed properties
     * and create new connection with consumer by accepting consumer socket
+    * with the nio argument a non-blocking server is started instead,
+    * it serves any number of consumers from one thread
+    * with the replay argument [count] items are appended to a binary log
+    * and consumers are served from the log starting at any offset they ask for
+    * connections run as tasks on the executor chosen with -Dtasks=platform|virtual|pool:N,
+    * see Tasks, blocking socket I/O on a virtual thread does not hold a platform thread
     */
     public static void main(String args[]){
+        if(args.length > 0 && args[0].equals("replay")){
+            try{
+                ReplayServer server = new ReplayServer(Paths.get(ReplayServer.LOG_FILE));
+                long count = args.length > 1 ? Long.parseLong(args[1]) : 100;
+                if(count > 0){
+                    server.append(IntSource.permutation(count));
+                }
+                ExecutorService tasks = Tasks.open();
+                server.run(3333, tasks);
+                Tasks.close(tasks);
+            }
+            catch(IOException e){
+                System.out.println("Listen: " + e.getMessage());
+            }
+            return;
+        }
+        if(args.length > 0 && args[0].equals("nio")){
+            try{
+                new NioServer(3333).run();
+            }
+            catch(IOException e){
+                System.out.println("Listen: " + e.getMessage());
+            }
+            return;
+        }
         try{
             int producerPort = 3333;
             ServerSocket listen = new ServerSocket(producerPort);//producer socket
             listen.setSoTimeout(10000);// set timeout
                 Socket consumer = listen.accept();
-                Connection transferData = new Connection(consumer);
+                Connection connection = new Connection(consumer);//the socket is closed when this fails
+                ScheduledFuture<?> printing = ChannelMetrics.printEvery();//only with -Dmetrics=millis
+                ExecutorService tasks = Tasks.open();
+                tasks.execute(connection);
+                Tasks.close(tasks);
+                ChannelMetrics.stopPrinting(printing);
         }
         catch(IOException e){
             System.out.println("Listen: " + e.getMessage());
@@ -32,58 +71,116 @@ public class Producer{
 /*
 * Connection class represents an object that implements 
 * data exchange between a producer and a consumer
-* Connection class extends Thread
+* Connection class is a task that serves one consumer
 */
-class Connection extends Thread{
-    //DataInputStream in;//data stream for receiving data from the consumer
+class Connection implements Runnable{
+    DataInputStream in;//data stream for receiving the request and the acks of the consumer
     DataOutputStream out;// data stream for sending data to the consumer
     Socket consumer;//consumer socket
-    private int[] randNums;//an array that will hold 100 randomly generated data
+    private final IntSource source;//where the sent items come from
+    private final ChannelMetrics metrics = new ChannelMetrics("connection", Protocol.MAX_WINDOW);//items taken from the source until the consumer acks them
 
     /*
     * Connection constructor is used to initiallize Connection object
     * Socket is taken as a parameter 
     * consumer socket is initiallized
     * data streams are initiallized
-    * an array of random data is initiallized and filled with integers
-    * the thread is started after the object is initiallized
+    * the integers from 0 to 99 in a random order are sent
+    * the connection starts when it is run by a thread or an executor
     */
-    public Connection(Socket consumerSocket){
-        try{
-            consumer = consumerSocket;
-            out = new DataOutputStream(consumer.getOutputStream());
-
-            randNums = new int[100];
-            fillArray(randNums);//fill the array with int from 0 to 100
-            shuffleArray(randNums);//shuffle all integers in the array
+    public Connection(Socket consumerSocket) throws IOException{
+        this(consumerSocket, IntSource.permutation(100));
+    }
 
-            this.start();//start the thread
+    /*
+    * Connection constructor is used to send the items of any source to the consumer
+    * IOException is thrown when the socket cannot be set up, the socket and the source are closed then
+    */
+    public Connection(Socket consumerSocket, IntSource source) throws IOException{
+        this.source = source;
+        consumer = consumerSocket;
+        try{
+            consumer.setTcpNoDelay(true);//the last frame before a wait for credit must not be held back
+            in = new DataInputStream(consumer.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(consumer.getOutputStream(), Protocol.BUFFER_SIZE));
         }
         catch(IOException e){
-            System.out.println("Connection: " + e.getMessage());
+            source.close();
+            try{
+                consumer.close();
+            }
+            catch(IOException ce){
+                e.addSuppressed(ce);
+            }
+            throw e;
         }
     }
 
     /*
-    * run() method is used to send 100 data to the consumer using 
-    * output stream
+    * run() method is used to send the items of the source to the consumer using 
+    * output stream, items are taken from the source one frame at a time
+    * a frame holds no more items than the credit of the consumer allows,
+    * without credit the stream is flushed and the next ack is awaited,
+    * that wait is a credit stall, not a blocked write
     * all data sent to the consumer is stored in a file called produced.txt
+    * the metrics of the connection are registered while it runs,
+    * an item is put when it is taken from the source and taken when an ack of the consumer
+    * covers it, so the latency is the time until the consumer got the item;
+    * acks that already arrived are read before every frame,
+    * the items after the last ack are taken when the consumer closes
+    * the time a frame takes to write, from when credit is available, is write time,
+    * only the credit waits count as blocked puts,
+    * a write that outlasts the stall threshold waited for room in the socket send buffer,
+    * see ChannelStall
     */
     public void run(){
 
-            int count = 0;//count how many data is sent
+            int[] frame = new int[Protocol.MAX_FRAME_ITEMS];//items of the next frame
+            metrics.register();
             //send data to a consumer and write data to a file
             try{
-            PrintWriter write = new PrintWriter("produced.txt", "UTF-8");//create a new writer to a file
-            write.println("Produced items:");
-            //sending data
-            while(count < 100){
-                out.writeUTF(Integer.toString(randNums[count]));
-                write.println(Integer.toString(randNums[count]));
-                count++;
+            AuditLog audit = AuditLog.open("produced.txt", "Produced items:");//asynchronous writer to a file
+            //skip the items the consumer does not want
+            Protocol.Credit credit = Protocol.readRequest(in);
+            source.skip(credit.start());
+            long seq = credit.start();//sequence number of the next item
+            long taken = seq;//sequence number of the first item the metrics do not count as taken
+            Protocol.writeHeader(out);
+            //sending data one frame at a time
+            while(source.hasNext()){
+                while(in.available() >= Protocol.ACK_BYTES){
+                    credit.readAck(in);//an ack that already arrived
+                }
+                if(credit.available() == 0){
+                    ChannelStall stall = ChannelStall.start();
+                    while(credit.available() == 0){
+                        out.flush();//the consumer acknowledges only what it got
+                        credit.readAck(in);
+                    }
+                    metrics.creditBlocked(stall);
+                }
+                taken = countTaken(taken, credit.acked());
+                int max = Math.min(frame.length, credit.available());
+                int n = 0;
+                while(n < max && source.hasNext()){
+                    frame[n++] = source.next();
+                }
+                metrics.put(seq, n);
+                ChannelStall write = ChannelStall.start();
+                Protocol.writeData(out, frame, 0, n);
+                metrics.written(write);
+                credit.sent(n);
+                seq += n;
+                for(int i = 0; i < n; i++){
+                    audit.log(frame[i]);
+                }
+            }
+            Protocol.writeEnd(out);
+            out.flush();
+            if(Protocol.finish(consumer, in)){//read the last acks until the consumer closes
+                countTaken(taken, seq);
             }
-            out.writeUTF("done");
-            write.close();//close PrintWriter
+            audit.close();//close the audit log
            // System.out.println("Done sending data");
 
             readFile();//display produced items from the file
@@ -92,7 +189,11 @@ class Connection extends Thread{
             catch(Exception e){
                 System.out.println("writer: " + e.getMessage());
             }
+            finally{
+                source.close();//give back what the source holds, a file for example
+            }
 
+            metrics.unregister();
             try{
                 consumer.close();//close consumer socket
             }
@@ -102,36 +203,15 @@ class Connection extends Thread{
             }
     }
     /*
-    * fillArray method is used to fill an array with integers from 0 to 100
-    * each int number value corresponds to its index in the array
-    * array of int is taken as a parameter
+    * countTaken method is used to count the items from taken up to acked as taken
+    * the sequence number of the first item that is not counted is returned
     */
-    private void fillArray(int[] arr){
-        for(int i = 0; i < arr.length; i++){
-            arr[i] = i;
+    private long countTaken(long taken, long acked){
+        if(acked > taken){
+            metrics.take(taken, (int) (acked - taken));
         }
-    }//end of fillArray 
-
-    /*
-    * shuffleArray method is used to shuffle integers in a given array
-    * using fisher yates shuffle technique 
-    * array of integers is taken as a parameter
-    */
-    private void shuffleArray(int[] arr) {
-      
-    Random random = new Random();//create random number
-    int randNum = 0;
-    randNum = random.nextInt(100) + 1;
-    
-    for (int i = arr.length - 1; i > 0; i--){
-		int index = random.nextInt(i + 1);
-      	// Simple swap
-      	int a = arr[index];
-      	arr[index] =  arr[i];
-      	arr[i] = a;
-    
+        return acked;
     }
-    }// end shuffleList
 
     /*
     *readFile method is used to read all content from a file created
@@ -0,0 +1,542 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.IntConsumer;
+
+/*
+* Protocol class holds the binary wire format that is used between
+* a producer and a consumer
+* a consumer opens a stream with a request: the magic number, the protocol version,
+* the sequence number of the first item it wants (0 for the whole stream)
+* and its window, the most items it lets the producer have in flight
+* the producer answers with a header: the magic number and the protocol version
+* the header is followed by frames, every frame starts with a type byte and an item count
+* a DATA frame carries count raw big endian integers,
+* an END frame carries no items and marks the end of the stream
+* while it reads, the consumer sends ACK messages back: the type byte, the sequence number
+* of the first item it has not consumed yet and its window from now on
+* the producer sends an item only while its sequence number is below the last acked
+* sequence number plus the window, so a slow consumer costs it a bounded amount of memory
+* after the END frame the producer shuts its output down and reads the acks that are still
+* on their way until the consumer closes, see finish
+*/
+final class Protocol{
+    static final int MAGIC = 0x50434F4E;//"PCON"
+    static final short VERSION = 3;
+    static final byte DATA = 1;//frame with items
+    static final byte END = 2;//end of stream frame
+    static final byte ACK = 3;//acknowledgement from the consumer
+    static final int MAX_FRAME_ITEMS = 1024;//max number of items in one DATA frame
+    static final int BUFFER_SIZE = 64 * 1024;//size of the stream buffers on both ends
+    static final int HEADER_BYTES = 6;//magic and version
+    static final int FRAME_HEADER_BYTES = 5;//type and count
+    static final int REQUEST_BYTES = 18;//magic, version, start sequence and window
+    static final int ACK_BYTES = 13;//type, acked sequence and window
+    static final int MAX_WINDOW = 256 * 1024;//most items a consumer may have in flight, 1 MB
+    static final int DEFAULT_WINDOW = Math.max(1, Math.min(MAX_WINDOW, Integer.getInteger("window", 64 * 1024)));
+    static final int LINGER_MILLIS = 10000;//ms a producer waits for the consumer to close after the END frame
+
+    private Protocol(){
+    }
+
+    /*
+    * writeHeader method is used to start a stream with the magic number and the version
+    */
+    static void writeHeader(DataOutputStream out) throws IOException{
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    /*
+    * readHeader method is used to check that the stream starts with a header
+    * of a supported version
+    */
+    static void readHeader(DataInputStream in) throws IOException{
+        int magic = in.readInt();
+        if(magic != MAGIC){
+            throw new IOException("not a producer stream, magic " + Integer.toHexString(magic));
+        }
+        short version = in.readShort();
+        if(version != VERSION){
+            throw new IOException("unsupported protocol version " + version);
+        }
+    }
+
+    /*
+    * writeData method is used to send count items starting at off
+    * split into DATA frames of at most MAX_FRAME_ITEMS items
+    */
+    static void writeData(DataOutputStream out, int[] items, int off, int count) throws IOException{
+        while(count > 0){
+            int n = Math.min(count, MAX_FRAME_ITEMS);
+            out.writeByte(DATA);
+            out.writeInt(n);
+            for(int i = 0; i < n; i++){
+                out.writeInt(items[off + i]);
+            }
+            off += n;
+            count -= n;
+        }
+    }
+
+    /*
+    * writeEnd method is used to mark the end of the stream
+    */
+    static void writeEnd(DataOutputStream out) throws IOException{
+        out.writeByte(END);
+        out.writeInt(0);
+    }
+
+    /*
+    * putHeader method is used to encode the stream header into a buffer
+    */
+    static void putHeader(ByteBuffer buf){
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+    }
+
+    /*
+    * getHeader method is used to check the stream header at the position of a buffer
+    */
+    static void getHeader(ByteBuffer buf) throws IOException{
+        int magic = buf.getInt();
+        if(magic != MAGIC){
+            throw new IOException("not a producer stream, magic " + Integer.toHexString(magic));
+        }
+        short version = buf.getShort();
+        if(version != VERSION){
+            throw new IOException("unsupported protocol version " + version);
+        }
+    }
+
+    /*
+    * putData method is used to encode one DATA frame into a buffer
+    * as many of the count items starting at off are encoded as fit in the buffer
+    * and in one frame, the number of encoded items is returned
+    * nothing is encoded when there is no room for the frame header and one item
+    */
+    static int putData(ByteBuffer buf, int[] items, int off, int count){
+        int n = Math.min(Math.min(count, MAX_FRAME_ITEMS), (buf.remaining() - FRAME_HEADER_BYTES) / 4);
+        if(n <= 0){
+            return 0;
+        }
+        buf.put(DATA);
+        buf.putInt(n);
+        for(int i = 0; i < n; i++){
+            buf.putInt(items[off + i]);
+        }
+        return n;
+    }
+
+    /*
+    * putEnd method is used to encode the END frame into a buffer
+    * false is returned when there is no room for it
+    */
+    static boolean putEnd(ByteBuffer buf){
+        if(buf.remaining() < FRAME_HEADER_BYTES){
+            return false;
+        }
+        buf.put(END);
+        buf.putInt(0);
+        return true;
+    }
+
+    /*
+    * writeRequest method is used by a consumer to open a stream with the magic number,
+    * the version, the sequence number of the first item it wants and its window
+    */
+    static void writeRequest(DataOutputStream out, long start, int window) throws IOException{
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(start);
+        out.writeInt(window);
+    }
+
+    /*
+    * putRequest method is used to encode a request into a buffer
+    */
+    static void putRequest(ByteBuffer buf, long start, int window){
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+        buf.putLong(start);
+        buf.putInt(window);
+    }
+
+    /*
+    * readRequest method is used by a producer to read the request of a consumer
+    * the credit of the consumer is returned, it starts at the first wanted item
+    */
+    static Credit readRequest(DataInputStream in) throws IOException{
+        readHeader(in);
+        long start = in.readLong();
+        return new Credit(start, in.readInt());
+    }
+
+    /*
+    * getRequest method is used to decode a request from a buffer of REQUEST_BYTES bytes
+    */
+    static Credit getRequest(ByteBuffer buf) throws IOException{
+        int magic = buf.getInt();
+        short version = buf.getShort();
+        if(magic != MAGIC || version != VERSION){
+            throw new IOException("bad request: magic " + Integer.toHexString(magic) + ", version " + version);
+        }
+        long start = buf.getLong();
+        return new Credit(start, buf.getInt());
+    }
+
+    /*
+    * writeAck method is used by a consumer to acknowledge every item before acked
+    * and to grant window items from there
+    */
+    static void writeAck(DataOutputStream out, long acked, int window) throws IOException{
+        out.writeByte(ACK);
+        out.writeLong(acked);
+        out.writeInt(window);
+    }
+
+    /*
+    * putAck method is used to encode an ack into a buffer
+    */
+    static void putAck(ByteBuffer buf, long acked, int window){
+        buf.put(ACK);
+        buf.putLong(acked);
+        buf.putInt(window);
+    }
+
+    private static void checkWindow(int window) throws IOException{
+        if(window < 1 || window > MAX_WINDOW){
+            throw new IOException("bad window " + window + ", it must be 1 to " + MAX_WINDOW);
+        }
+    }
+
+    /*
+    * finish method is used by a producer after the END frame is sent
+    * the output is shut down and the acks that are still on their way are read
+    * until the consumer closes or LINGER_MILLIS pass,
+    * closing a socket with unread acks would reset the connection
+    * and the consumer could lose the end of the stream
+    * true is returned when the consumer closed, so it read the whole stream
+    */
+    static boolean finish(Socket socket, InputStream in) throws IOException{
+        socket.shutdownOutput();
+        socket.setSoTimeout(LINGER_MILLIS);
+        byte[] discard = new byte[ACK_BYTES * 16];
+        try{
+            while(in.read(discard) >= 0){
+                //acks after the end of the stream are not needed
+            }
+            return true;
+        }
+        catch(SocketTimeoutException e){
+            return false;//the consumer did not close, the socket is closed anyway
+        }
+    }
+
+    /*
+    * Credit class is the producer side of the flow control of one consumer
+    * it tracks the sequence number of the next item to send and how far the
+    * acks of the consumer allow sending
+    */
+    static class Credit{
+        private final long start;//sequence number of the first wanted item
+        private long sent;//sequence number of the next item to send
+        private long acked;//sequence number of the first item that is not acknowledged
+        private long limit;//items below this sequence number may be sent
+
+        Credit(long start, int window) throws IOException{
+            if(start < 0){
+                throw new IOException("bad start sequence " + start);
+            }
+            checkWindow(window);
+            this.start = start;
+            sent = start;
+            acked = start;
+            limit = start + window;
+        }
+
+        /*
+        * start method returns the sequence number of the first item the consumer wants
+        */
+        long start(){
+            return start;
+        }
+
+        /*
+        * acked method returns the sequence number of the first item that is not acknowledged
+        */
+        long acked(){
+            return acked;
+        }
+
+        /*
+        * available method returns how many items may be sent right now
+        */
+        int available(){
+            return (int) Math.max(0, limit - sent);
+        }
+
+        /*
+        * sent method is used to count n items that were sent
+        */
+        void sent(int n){
+            sent += n;
+        }
+
+        /*
+        * readAck method is used to wait for the next ack of the consumer
+        */
+        void readAck(DataInputStream in) throws IOException{
+            byte type = in.readByte();
+            long ackedSeq = in.readLong();
+            ack(type, ackedSeq, in.readInt());
+        }
+
+        /*
+        * getAck method is used to decode an ack from a buffer with ACK_BYTES bytes remaining
+        */
+        void getAck(ByteBuffer buf) throws IOException{
+            byte type = buf.get();
+            long ackedSeq = buf.getLong();
+            ack(type, ackedSeq, buf.getInt());
+        }
+
+        /*
+        * ack method is used to move the limit, acks are cumulative,
+        * so an ack may not go back or past what was sent
+        */
+        private void ack(byte type, long ackedSeq, int window) throws IOException{
+            if(type != ACK || ackedSeq < acked || ackedSeq > sent){
+                throw new IOException("bad ack: type " + type + ", sequence " + ackedSeq + " of " + sent + " sent");
+            }
+            checkWindow(window);
+            acked = ackedSeq;
+            limit = ackedSeq + window;
+        }
+    }//end Credit
+
+    /*
+    * FrameReader class is used to decode DATA frames of any size
+    * into an array that is reused for every call
+    * the items returned by a call count as consumed when the next call is made,
+    * they are acknowledged once half a window of them is not acknowledged yet
+    * the socket should have TCP_NODELAY set, otherwise an ack can wait for a delayed
+    * TCP acknowledgement of the one before it
+    */
+    static class FrameReader{
+        private final DataInputStream in;
+        private final DataOutputStream out;//for the request and the acks
+        private int remaining;//items of the current frame that are not decoded yet
+        private boolean ended;//true after the END frame is read
+        private int window;//items the producer may have in flight
+        private long next;//sequence number of the next item to decode
+        private long acked;//sequence number sent in the last ack
+
+        FrameReader(DataInputStream in, DataOutputStream out){
+            this.in = in;
+            this.out = out;
+        }
+
+        /*
+        * open method is used to send the request for the items from start on
+        * with a window of window items and to check the header of the answer
+        */
+        void open(long start, int window) throws IOException{
+            this.window = window;
+            next = start;
+            acked = start;
+            writeRequest(out, start, window);
+            out.flush();
+            readHeader(in);
+        }
+
+        /*
+        * read method is used to decode up to dst.length items into dst
+        * frames are read as needed, a call never spans more than one frame
+        * the number of decoded items is returned, or -1 after the END frame
+        */
+        int read(int[] dst) throws IOException{
+            if(!ended && next - acked >= Math.max(1, window / 2)){
+                writeAck(out, next, window);
+                out.flush();
+                acked = next;
+            }
+            while(remaining == 0){
+                if(ended){
+                    return -1;
+                }
+                byte type = in.readByte();
+                int count = in.readInt();
+                if(type == END){
+                    ended = true;
+                }
+                else if(type == DATA && count >= 0){
+                    remaining = count;
+                }
+                else{
+                    throw new IOException("bad frame: type " + type + ", count " + count);
+                }
+            }
+            int n = Math.min(remaining, dst.length);
+            for(int i = 0; i < n; i++){
+                dst[i] = in.readInt();
+            }
+            remaining -= n;
+            next += n;
+            return n;
+        }
+    }//end FrameReader
+
+    /*
+    * BatchHandler interface is used to take the items of a ChannelReader in batches,
+    * the array is reused, so it must not be kept after accept returns
+    */
+    interface BatchHandler{
+        void accept(int[] items, int count);
+    }//end BatchHandler
+
+    /*
+    * ChannelReader class is the receive side of a consumer on a SocketChannel
+    * the stream is read into one direct buffer that is reused for every read,
+    * so the bytes are not copied into the heap before they are decoded
+    * items are decoded in bulk into an array that is reused as well,
+    * a frame or an item that is split across two reads is finished after the next read
+    * nothing is allocated per frame or per item, acks are sent like those of a FrameReader
+    */
+    static class ChannelReader{
+        private final SocketChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);//big endian like the stream
+        private final int[] batch = new int[MAX_FRAME_ITEMS];
+        private final ByteBuffer ack = ByteBuffer.allocate(ACK_BYTES);//reused for every ack
+        private int remaining;//items of the current frame that are not decoded yet
+        private boolean ended;//true after the END frame is read
+        private long received;//items decoded so far
+        private int window;//items the producer may have in flight
+        private long next;//sequence number of the next item to decode
+        private long acked;//sequence number sent in the last ack
+
+        ChannelReader(SocketChannel channel){
+            this.channel = channel;
+            buf.flip();//nothing to decode yet
+        }
+
+        /*
+        * open method is used to send the request for the items from start on
+        * with a window of window items and to check the header of the answer
+        */
+        void open(long start, int window) throws IOException{
+            this.window = window;
+            next = start;
+            acked = start;
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);//an ack must not wait for the one before it
+            ByteBuffer request = ByteBuffer.allocate(REQUEST_BYTES);
+            putRequest(request, start, window);
+            request.flip();
+            writeFully(request);
+            fill(HEADER_BYTES);
+            getHeader(buf);
+        }
+
+        /*
+        * read method is used to decode up to dst.length items into dst
+        * a call never spans more than one frame and decodes at most what is already
+        * in the buffer, the buffer is refilled only when it holds no whole item
+        * the number of decoded items is returned, or -1 after the END frame
+        */
+        int read(int[] dst) throws IOException{
+            if(!ended && next - acked >= Math.max(1, window / 2)){
+                ack.clear();
+                putAck(ack, next, window);
+                ack.flip();
+                writeFully(ack);
+                acked = next;
+            }
+            while(remaining == 0){
+                if(ended){
+                    return -1;
+                }
+                fill(FRAME_HEADER_BYTES);
+                byte type = buf.get();
+                int count = buf.getInt();
+                if(type == END){
+                    ended = true;
+                }
+                else if(type == DATA && count >= 0){
+                    remaining = count;
+                }
+                else{
+                    throw new IOException("bad frame: type " + type + ", count " + count);
+                }
+            }
+            fill(4);
+            int n = Math.min(Math.min(remaining, dst.length), buf.remaining() / 4);
+            for(int i = 0; i < n; i++){
+                dst[i] = buf.getInt();
+            }
+            remaining -= n;
+            received += n;
+            next += n;
+            return n;
+        }
+
+        /*
+        * receive method is used to hand every item up to the END frame to sink
+        * the number of items is returned
+        */
+        long receive(IntConsumer sink) throws IOException{
+            long start = received;
+            int n;
+            while((n = read(batch)) >= 0){
+                for(int i = 0; i < n; i++){
+                    sink.accept(batch[i]);
+                }
+            }
+            return received - start;
+        }
+
+        /*
+        * receive method is used to hand the items up to the END frame to handler in batches
+        * the number of items is returned
+        */
+        long receive(BatchHandler handler) throws IOException{
+            long start = received;
+            int n;
+            while((n = read(batch)) >= 0){
+                if(n > 0){
+                    handler.accept(batch, n);
+                }
+            }
+            return received - start;
+        }
+
+        /*
+        * received method returns the number of items decoded so far
+        */
+        long received(){
+            return received;
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException{
+            while(src.hasRemaining()){
+                channel.write(src);
+            }
+        }
+
+        /*
+        * fill method is used to read from the channel until the buffer holds at least bytes bytes
+        */
+        private void fill(int bytes) throws IOException{
+            while(buf.remaining() < bytes){
+                buf.compact();
+                int read = channel.read(buf);
+                buf.flip();
+                if(read < 0){
+                    throw new EOFException("stream ended before the END frame");
+                }
+            }
+        }
+    }//end ChannelReader
+}//end Protocol
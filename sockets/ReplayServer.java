@@ -0,0 +1,234 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/*
+* ReplayServer class is a producer server that serves consumers from a binary log file
+* produced items are appended to produced.log: a log header (LOG_MAGIC and LOG_VERSION)
+* followed by raw big endian integers, item i is stored at LOG_HEADER_BYTES + 4 * i
+* the log format has its own version, a new version of the wire protocol does not change it
+* logs written before it had its own header start with the stream header of protocol
+* version 2 instead, the layout is the same, so they are read and appended to as well
+* a consumer asks for the sequence number of its first item and every item from
+* there to the current end of the log is sent with FileChannel.transferTo,
+* so the items go from the page cache to the socket without passing through the heap
+* every consumer is served by its own task on an executor
+* the server stops when nobody connects for 10 seconds
+*/
+class ReplayServer{
+    static final String LOG_FILE = "produced.log";
+    private static final int ACCEPT_TIMEOUT = 10000;//ms to wait for the next consumer
+    private static final int REPLAY_FRAME_ITEMS = 256 * 1024;//most items sent in one DATA frame
+    static final int LOG_MAGIC = 0x50434C47;//"PCLG"
+    static final short LOG_VERSION = 1;
+    static final int LOG_HEADER_BYTES = 6;//magic and version
+    private static final short LEGACY_VERSION = 2;//protocol version of the stream header in older logs
+
+    private final Path log;
+
+    /*
+    * ReplayServer constructor is used to open the log,
+    * the log is created with a header when it does not exist yet
+    */
+    ReplayServer(Path log) throws IOException{
+        this.log = log;
+        try(FileChannel file = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+            if(file.size() == 0){
+                header.putInt(LOG_MAGIC);
+                header.putShort(LOG_VERSION);
+                header.flip();
+                while(header.hasRemaining()){
+                    file.write(header);
+                }
+            }
+            else{
+                //an existing log must start with a header of this log version or an older log header
+                file.read(header, 0);
+                header.flip();
+                if(header.remaining() < LOG_HEADER_BYTES || !knownHeader(header.getInt(), header.getShort())){
+                    throw new IOException(log + " is not a producer log of version " + LOG_VERSION);
+                }
+            }
+        }
+    }
+
+    private static boolean knownHeader(int magic, short version){
+        return (magic == LOG_MAGIC && version == LOG_VERSION)
+            || (magic == Protocol.MAGIC && version == LEGACY_VERSION);
+    }
+
+    /*
+    * append method is used to persist every item of a source at the end of the log
+    * the items are written to a file called produced.txt as well
+    * the source is closed afterwards
+    */
+    void append(IntSource items) throws IOException{
+        ByteBuffer buf = ByteBuffer.allocate(Protocol.BUFFER_SIZE);
+        try(items;
+            FileChannel file = FileChannel.open(log, StandardOpenOption.APPEND);
+            AuditLog audit = AuditLog.open("produced.txt", "Produced items:")){
+            while(items.hasNext()){
+                if(!buf.hasRemaining()){
+                    drain(buf, file);
+                }
+                int item = items.next();
+                buf.putInt(item);
+                audit.log(item);
+            }
+            drain(buf, file);
+            file.force(false);
+        }
+    }
+
+    private static void drain(ByteBuffer buf, FileChannel file) throws IOException{
+        buf.flip();
+        while(buf.hasRemaining()){
+            file.write(buf);
+        }
+        buf.clear();
+    }
+
+    /*
+    * run method is used to accept consumers until nobody connects for ACCEPT_TIMEOUT
+    * and serve every consumer from the log as a task on tasks
+    */
+    void run(int port, Executor tasks) throws IOException{
+        try(ServerSocketChannel listen = ServerSocketChannel.open()){
+            listen.bind(new InetSocketAddress(port));
+            listen.socket().setSoTimeout(ACCEPT_TIMEOUT);
+            while(true){
+                Socket consumer;
+                try{
+                    consumer = listen.socket().accept();
+                }
+                catch(SocketTimeoutException e){
+                    break;//nobody connected in time
+                }
+                tasks.execute(new ReplayConnection(consumer.getChannel(), log));
+            }
+        }
+    }
+
+    /*
+    * ReplayConnection class sends the log to one consumer
+    * starting at the sequence number the consumer asked for
+    */
+    private static class ReplayConnection implements Runnable{
+        private final SocketChannel consumer;//consumer socket
+        private final Path log;
+        private final ChannelMetrics metrics = new ChannelMetrics("replay", Protocol.MAX_WINDOW);//items sent until the consumer acks them
+
+        ReplayConnection(SocketChannel consumer, Path log){
+            this.consumer = consumer;
+            this.log = log;
+        }
+
+        /*
+        * run method is used to read the request of the consumer and send
+        * every logged item from the requested one on, followed by the end frame
+        * a frame is cut to the credit of the consumer, without credit its next ack is awaited
+        * only the frame headers are built on the heap, the items are transferred from the file
+        * the metrics are kept like the ones of a Connection: an item is put when it is sent
+        * and taken when an ack covers it, a wait for credit is a credit stall
+        * and the time of a transfer is write time
+        */
+        @Override
+        public void run(){
+            metrics.register();
+            try(SocketChannel channel = consumer;
+                FileChannel file = FileChannel.open(log, StandardOpenOption.READ)){
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);//a frame header must not wait for an ack
+                ByteBuffer request = ByteBuffer.allocate(Protocol.REQUEST_BYTES);
+                while(request.hasRemaining()){
+                    if(channel.read(request) < 0){
+                        throw new EOFException("consumer closed before sending a request");
+                    }
+                }
+                request.flip();
+                Protocol.Credit credit = Protocol.getRequest(request);
+                long start = credit.start();
+                DataInputStream acks = new DataInputStream(channel.socket().getInputStream());
+                long end = (file.size() - LOG_HEADER_BYTES) / 4;//items in the log right now
+
+                ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_BYTES + Protocol.FRAME_HEADER_BYTES);
+                Protocol.putHeader(header);
+                long seq = Math.min(start, end);//sequence number of the next item
+                long taken = seq;//sequence number of the first item the metrics do not count as taken
+                while(seq < end){
+                    while(acks.available() >= Protocol.ACK_BYTES){
+                        credit.readAck(acks);//an ack that already arrived
+                    }
+                    if(credit.available() == 0){
+                        ChannelStall stall = ChannelStall.start();
+                        while(credit.available() == 0){
+                            credit.readAck(acks);
+                        }
+                        metrics.creditBlocked(stall);
+                    }
+                    taken = countTaken(taken, credit.acked());
+                    int n = (int) Math.min(Math.min(end - seq, REPLAY_FRAME_ITEMS), credit.available());
+                    header.put(Protocol.DATA);
+                    header.putInt(n);
+                    header.flip();
+                    writeFully(channel, header);
+                    header.clear();
+                    metrics.put(seq, n);
+                    ChannelStall write = ChannelStall.start();
+                    transferFully(file, LOG_HEADER_BYTES + 4 * seq, 4L * n, channel);
+                    metrics.written(write);//a long transfer waited for the consumer
+                    credit.sent(n);
+                    seq += n;
+                }
+                Protocol.putEnd(header);
+                header.flip();
+                writeFully(channel, header);
+                if(Protocol.finish(channel.socket(), acks)){//read the last acks until the consumer closes
+                    countTaken(taken, seq);
+                }
+            }
+            catch(IOException e){
+                System.out.println("Connection: " + e.getMessage());
+            }
+            finally{
+                metrics.unregister();
+            }
+        }
+
+        /*
+        * countTaken method is used to count the items from taken up to acked as taken
+        * the sequence number of the first item that is not counted is returned
+        */
+        private long countTaken(long taken, long acked){
+            if(acked > taken){
+                metrics.take(taken, (int) (acked - taken));
+            }
+            return acked;
+        }
+
+        private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException{
+            while(buf.hasRemaining()){
+                channel.write(buf);
+            }
+        }
+
+        /*
+        * transferFully method is used to send count bytes of the file starting at position
+        * transferTo may send less than asked, so it is called until everything is sent
+        */
+        private static void transferFully(FileChannel file, long position, long count, SocketChannel channel) throws IOException{
+            while(count > 0){
+                long sent = file.transferTo(position, count, channel);
+                if(sent <= 0 && position >= file.size()){
+                    throw new EOFException("log is shorter than expected");
+                }
+                position += sent;
+                count -= sent;
+            }
+        }
+    }//end ReplayConnection
+}//end ReplayServer